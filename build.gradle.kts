@@ -1,3 +1,4 @@
+import io.nekohasekai.tmicro.generator.TMApiGenerator
 import org.jetbrains.kotlin.gradle.tasks.KotlinCompile
 
 val logback_version: String by project
@@ -8,6 +9,7 @@ plugins {
     application
     java
     kotlin("jvm") version "1.4.32"
+    id("me.champeau.jmh") version "0.6.5"
 }
 
 group = "io.nekohasekai"
@@ -30,6 +32,21 @@ compileKotlin.kotlinOptions {
     jvmTarget = "11"
 }
 
+val tmApiSchema = file("schema/tmapi.tl")
+val tmApiDir = file("$buildDir/generated/tmapi")
+
+val generateTMApi by tasks.registering {
+    inputs.file(tmApiSchema)
+    outputs.dir(tmApiDir)
+    doLast {
+        delete(tmApiDir)
+        TMApiGenerator.generate(tmApiSchema, tmApiDir)
+    }
+}
+
+compileKotlin.dependsOn(generateTMApi)
+tasks.compileJava { dependsOn(generateTMApi) }
+
 
 dependencies {
     implementation("org.jetbrains.kotlin:kotlin-stdlib-jdk8:$kotlin_version")
@@ -55,5 +72,11 @@ dependencies {
 }
 
 kotlin.sourceSets["main"].kotlin.srcDirs("src")
-sourceSets["main"].java.srcDirs("src")
+sourceSets["main"].java.srcDirs("src", tmApiDir)
 sourceSets["main"].resources.srcDirs("resources")
+sourceSets["jmh"].java.srcDirs("jmh")
+
+jmh {
+    jmhVersion.set("1.29")
+    profilers.add("gc")
+}
@@ -0,0 +1,5 @@
+plugins {
+    java
+}
+
+sourceSets["main"].java.srcDirs("src")
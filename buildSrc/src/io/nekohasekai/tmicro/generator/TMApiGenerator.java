@@ -0,0 +1,788 @@
+package io.nekohasekai.tmicro.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates {@code TMApi} and {@code TMApiConstructors} from a TL-style schema, see {@code schema/tmapi.tl}.
+ */
+public class TMApiGenerator {
+
+    private static final String PACKAGE = "io.nekohasekai.tmicro.tmnet";
+
+    private static final Pattern DECLARATION = Pattern.compile("^([a-z]\\w*)#([0-9a-fA-F]+)((?:\\s+[^=\\s]+)*)\\s*=\\s*([A-Z]\\w*)$");
+    private static final Pattern LAYER = Pattern.compile("^//\\s*@layer\\s+(\\d+)\\s*$");
+    private static final Pattern CONDITIONAL = Pattern.compile("^(\\w+)\\.(\\d+)\\?(.+)$");
+    private static final Pattern VECTOR = Pattern.compile("^vector<(.+)>$");
+
+    public static void main(String[] args) throws IOException {
+        generate(new File(args[0]), new File(args[1]));
+    }
+
+    public static void generate(File schema, File outputDir) throws IOException {
+        Schema parsed = parse(Files.readAllLines(schema.toPath(), StandardCharsets.UTF_8));
+        File packageDir = new File(outputDir, PACKAGE.replace('.', File.separatorChar));
+        if (!packageDir.isDirectory() && !packageDir.mkdirs()) {
+            throw new IOException("Unable to create " + packageDir);
+        }
+        write(new File(packageDir, "TMApi.java"), generateApi(parsed.constructors, parsed.layer));
+        write(new File(packageDir, "TMApiConstructors.java"), generateConstructors(parsed.constructors));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // parser
+
+    static class Schema {
+
+        final List<Constructor> constructors = new ArrayList<>();
+        int layer;
+
+    }
+
+    static class Constructor {
+
+        String name;
+        String className;
+        int id;
+        int layer;
+        boolean function;
+        String resultType;
+        final List<Field> fields = new ArrayList<>();
+
+        boolean hasFieldFlags() {
+            for (Field field : fields) {
+                if (field.flagsField != null && field.type.kind != Kind.TRUE && field.type.isPrimitive()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Field flagsField(String name) {
+            for (Field field : fields) {
+                if (field.name.equals(name) && field.type.kind == Kind.FLAGS) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException(this.name + ": unknown flags field " + name);
+        }
+
+        List<Field> arguments() {
+            List<Field> arguments = new ArrayList<>();
+            for (Field field : fields) {
+                if (field.type.kind != Kind.FLAGS || hasFieldFlags()) {
+                    arguments.add(field);
+                }
+            }
+            return arguments;
+        }
+
+    }
+
+    static class Field {
+
+        String name;
+        Type type;
+        String flagsField;
+        int flagBit;
+
+    }
+
+    enum Kind {
+        INT8, INT32, INT64, DOUBLE, BOOL, STRING, SYMBOL, BYTES, BUFFER, FLAGS, TRUE, VECTOR, BOXED, BARE
+    }
+
+    static class Type {
+
+        Kind kind;
+        String className;
+        Type element;
+
+        boolean isPrimitive() {
+            switch (kind) {
+                case INT8:
+                case INT32:
+                case INT64:
+                case DOUBLE:
+                case BOOL:
+                case FLAGS:
+                case TRUE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        String javaType() {
+            switch (kind) {
+                case INT8:
+                case INT32:
+                case FLAGS:
+                    return "int";
+                case INT64:
+                    return "long";
+                case DOUBLE:
+                    return "double";
+                case BOOL:
+                case TRUE:
+                    return "boolean";
+                case STRING:
+                case SYMBOL:
+                    return "String";
+                case BYTES:
+                    return "byte[]";
+                case BUFFER:
+                    return "ByteBuffer";
+                case VECTOR:
+                    return element.javaType() + "[]";
+                default:
+                    return className;
+            }
+        }
+
+        /**
+         * @return the encoded size if it does not depend on the value, -1 otherwise
+         */
+        int fixedSize() {
+            switch (kind) {
+                case INT8:
+                case FLAGS:
+                    return 1;
+                case INT32:
+                case BOOL:
+                    return 4;
+                case INT64:
+                case DOUBLE:
+                    return 8;
+                case TRUE:
+                    return 0;
+                default:
+                    return -1;
+            }
+        }
+
+        /**
+         * @return the fewest bytes a value is encoded in, 0 for bare objects whose fields are not known here
+         */
+        int minSize() {
+            int fixed = fixedSize();
+            if (fixed >= 0) {
+                return fixed;
+            }
+            // a length byte padded to 4, a vector count or a constructor
+            return kind == Kind.BARE ? 0 : 4;
+        }
+
+        /**
+         * @return the bytes a value takes as a vector element, a reference and an object header unless it is
+         * stored in the array itself
+         */
+        int elementSize() {
+            switch (kind) {
+                case INT8:
+                case INT32:
+                case FLAGS:
+                    return 4;
+                case INT64:
+                case DOUBLE:
+                    return 8;
+                case BOOL:
+                case TRUE:
+                    return 1;
+                default:
+                    return 4 + 16;
+            }
+        }
+
+    }
+
+    static Schema parse(List<String> lines) {
+        Schema schema = new Schema();
+        List<Constructor> constructors = schema.constructors;
+        Set<Integer> ids = new LinkedHashSet<>();
+        boolean functions = false;
+        int layer = 0;
+        StringBuilder declaration = new StringBuilder();
+        for (String rawLine : lines) {
+            String line = rawLine.trim();
+            Matcher layerMatcher = LAYER.matcher(line);
+            if (layerMatcher.matches()) {
+                layer = Integer.parseInt(layerMatcher.group(1));
+                // a layer may only change behaviour, without declaring anything
+                schema.layer = Math.max(schema.layer, layer);
+                continue;
+            }
+            int comment = line.indexOf("//");
+            if (comment >= 0) {
+                line = line.substring(0, comment).trim();
+            }
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.equals("---types---") || line.equals("---functions---")) {
+                functions = line.equals("---functions---");
+                layer = 0;
+                continue;
+            }
+            declaration.append(' ').append(line);
+            if (!line.endsWith(";")) {
+                continue;
+            }
+            String text = declaration.toString().trim();
+            declaration.setLength(0);
+            Constructor constructor = parseDeclaration(text.substring(0, text.length() - 1).trim());
+            constructor.layer = layer;
+            constructor.function = functions;
+            if (!ids.add(constructor.id)) {
+                throw new IllegalArgumentException("Duplicate constructor 0x" + Integer.toHexString(constructor.id));
+            }
+            constructors.add(constructor);
+        }
+        if (declaration.length() > 0) {
+            throw new IllegalArgumentException("Unterminated declaration: " + declaration);
+        }
+        return schema;
+    }
+
+    private static Constructor parseDeclaration(String text) {
+        Matcher matcher = DECLARATION.matcher(text);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Bad declaration: " + text);
+        }
+        Constructor constructor = new Constructor();
+        constructor.name = matcher.group(1);
+        constructor.className = Character.toUpperCase(constructor.name.charAt(0)) + constructor.name.substring(1);
+        constructor.id = Integer.parseUnsignedInt(matcher.group(2), 16);
+        constructor.resultType = matcher.group(4);
+        String params = matcher.group(3).trim();
+        if (!params.isEmpty()) {
+            for (String param : params.split("\\s+")) {
+                int colon = param.indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException(constructor.name + ": bad field " + param);
+                }
+                Field field = new Field();
+                field.name = param.substring(0, colon);
+                String type = param.substring(colon + 1);
+                Matcher conditional = CONDITIONAL.matcher(type);
+                if (conditional.matches()) {
+                    field.flagsField = conditional.group(1);
+                    field.flagBit = Integer.parseInt(conditional.group(2));
+                    if (field.flagBit > 7) {
+                        throw new IllegalArgumentException(constructor.name + ": flag bit out of range in " + param);
+                    }
+                    constructor.flagsField(field.flagsField);
+                    type = conditional.group(3);
+                }
+                field.type = parseType(constructor.name, type, field.flagsField != null);
+                constructor.fields.add(field);
+            }
+        }
+        return constructor;
+    }
+
+    private static Type parseType(String owner, String name, boolean conditional) {
+        Type type = new Type();
+        Matcher vector = VECTOR.matcher(name);
+        if (vector.matches()) {
+            type.kind = Kind.VECTOR;
+            type.element = parseType(owner, vector.group(1), false);
+            if (type.element.kind == Kind.VECTOR || type.element.kind == Kind.FLAGS || type.element.kind == Kind.TRUE) {
+                throw new IllegalArgumentException(owner + ": unsupported vector element " + name);
+            }
+            return type;
+        }
+        switch (name) {
+            case "int8":
+                type.kind = Kind.INT8;
+                break;
+            case "int32":
+                type.kind = Kind.INT32;
+                break;
+            case "int64":
+                type.kind = Kind.INT64;
+                break;
+            case "double":
+                type.kind = Kind.DOUBLE;
+                break;
+            case "Bool":
+                type.kind = Kind.BOOL;
+                break;
+            case "string":
+                type.kind = Kind.STRING;
+                break;
+            case "symbol":
+                type.kind = Kind.SYMBOL;
+                break;
+            case "bytes":
+                type.kind = Kind.BYTES;
+                break;
+            case "buffer":
+                type.kind = Kind.BUFFER;
+                break;
+            case "#":
+                type.kind = Kind.FLAGS;
+                break;
+            case "true":
+                if (!conditional) {
+                    throw new IllegalArgumentException(owner + ": true is only valid behind a flag");
+                }
+                type.kind = Kind.TRUE;
+                break;
+            default:
+                if (name.startsWith("%")) {
+                    type.kind = Kind.BARE;
+                    type.className = name.substring(1);
+                } else if (Character.isUpperCase(name.charAt(0))) {
+                    type.kind = Kind.BOXED;
+                    type.className = name;
+                } else {
+                    throw new IllegalArgumentException(owner + ": unknown type " + name);
+                }
+        }
+        return type;
+    }
+
+    // TMApi
+
+    static String generateApi(List<Constructor> constructors, int layer) {
+        Set<String> classNames = new LinkedHashSet<>();
+        Map<String, Boolean> abstractTypes = new LinkedHashMap<>();
+        for (Constructor constructor : constructors) {
+            classNames.add(constructor.className);
+        }
+        for (Constructor constructor : constructors) {
+            if (!constructor.function && !classNames.contains(constructor.resultType) && !constructor.resultType.equals("Object")) {
+                abstractTypes.put(constructor.resultType, false);
+            }
+        }
+
+        Code code = new Code();
+        code.line("// Generated from schema/tmapi.tl by TMApiGenerator, do not edit.");
+        code.line("package " + PACKAGE + ";");
+        code.line();
+        code.line("import java.nio.ByteBuffer;");
+        code.line();
+        code.open("public class TMApi {");
+        code.line();
+        code.line("public static int LAYER = " + layer + ";");
+        code.line();
+        code.open("public static abstract class Object {");
+        code.line();
+        code.line("public abstract int getConstructor();");
+        code.line();
+        code.open("public void readParams(AbstractSerializedData stream, boolean exception) {");
+        code.close("}");
+        code.line();
+        code.open("public void serializeToStream(AbstractSerializedData stream) {");
+        code.close("}");
+        code.line();
+        code.line("/**");
+        code.line(" * Size of the parameters written by {@link #serializeToStream}, without the constructor.");
+        code.line(" */");
+        code.open("public int getObjectSize() {");
+        code.line("return 0;");
+        code.close("}");
+        code.close("}");
+        code.line();
+        code.open("public static abstract class Function extends Object {");
+        code.line();
+        code.line("public int requestId;");
+        code.line();
+        code.close("}");
+
+        for (Constructor constructor : constructors) {
+            String superClass;
+            if (constructor.function) {
+                superClass = "Function";
+            } else if (abstractTypes.containsKey(constructor.resultType)) {
+                superClass = constructor.resultType;
+                if (!abstractTypes.get(constructor.resultType)) {
+                    abstractTypes.put(constructor.resultType, true);
+                    code.line();
+                    code.open("public static abstract class " + constructor.resultType + " extends Object {");
+                    code.close("}");
+                }
+            } else {
+                superClass = "Object";
+            }
+            code.line();
+            generateClass(code, constructor, superClass);
+        }
+
+        code.line();
+        code.close("}");
+        return code.toString();
+    }
+
+    private static void generateClass(Code code, Constructor constructor, String superClass) {
+        String name = constructor.className;
+        boolean fieldFlags = constructor.hasFieldFlags();
+        List<Field> arguments = constructor.arguments();
+
+        code.open("public static class " + name + " extends " + superClass + " {");
+        code.line();
+        code.line("public static final int CONSTRUCTOR = 0x" + Integer.toHexString(constructor.id) + ";");
+        code.line();
+        if (!arguments.isEmpty()) {
+            for (Field field : arguments) {
+                code.line("public " + field.type.javaType() + " " + field.name + ";");
+            }
+            code.line();
+            code.open("public " + name + "() {");
+            code.close("}");
+            code.line();
+            StringBuilder parameters = new StringBuilder();
+            for (Field field : arguments) {
+                if (parameters.length() > 0) {
+                    parameters.append(", ");
+                }
+                parameters.append(field.type.javaType()).append(' ').append(field.name);
+            }
+            code.open("public " + name + "(" + parameters + ") {");
+            for (Field field : arguments) {
+                code.line("this." + field.name + " = " + field.name + ";");
+            }
+            code.close("}");
+            code.line();
+        }
+        code.open("public int getConstructor() {");
+        code.line("return CONSTRUCTOR;");
+        code.close("}");
+
+        if (!constructor.fields.isEmpty()) {
+            code.line();
+            generateRead(code, constructor, fieldFlags);
+            code.line();
+            generateWrite(code, constructor, fieldFlags);
+            code.line();
+            generateSize(code, constructor);
+        }
+
+        code.line();
+        code.close("}");
+    }
+
+    private static String flagTest(Field field) {
+        return "(" + field.flagsField + " & 1 << " + field.flagBit + ") != 0";
+    }
+
+    private static void generateRead(Code code, Constructor constructor, boolean fieldFlags) {
+        code.open("public void readParams(AbstractSerializedData stream, boolean exception) {");
+        for (Field field : constructor.fields) {
+            if (field.type.kind == Kind.FLAGS) {
+                code.line((fieldFlags ? "" : "int ") + field.name + " = stream.readByte(exception) & 0xff;");
+            } else if (field.type.kind == Kind.TRUE) {
+                code.line(field.name + " = " + flagTest(field) + ";");
+            } else if (field.flagsField != null) {
+                code.open("if (" + flagTest(field) + ") {");
+                readValue(code, field.name, field.type);
+                code.close("}");
+            } else {
+                readValue(code, field.name, field.type);
+            }
+        }
+        code.close("}");
+    }
+
+    private static void readValue(Code code, String target, Type type) {
+        switch (type.kind) {
+            case VECTOR:
+                String count = target.replaceAll("\\W", "") + "Count";
+                code.line("int " + count + " = stream.readInt32(exception);");
+                code.open("if (!stream.checkVectorSize(" + count + ", " + type.element.minSize() + ", " + type.element.elementSize() + ", exception)) {");
+                code.line("return;");
+                code.close("}");
+                code.line(target + " = new " + newArray(type.element, count) + ";");
+                code.open("for (int i = 0; i < " + count + "; i++) {");
+                readValue(code, target + "[i]", type.element);
+                code.close("}");
+                break;
+            case BARE:
+                code.line(target + " = new " + type.className + "();");
+                code.line(target + ".readParams(stream, exception);");
+                break;
+            case BOXED:
+                String expected = type.className.equals("Object") ? "" : ", " + type.className + ".class";
+                code.line(target + " = TMStore.deserializeFromSteam(stream, exception" + expected + ");");
+                break;
+            default:
+                code.line(target + " = " + readPrimitive(type) + ";");
+        }
+    }
+
+    private static String newArray(Type element, String count) {
+        String javaType = element.javaType();
+        int bracket = javaType.indexOf('[');
+        if (bracket < 0) {
+            return javaType + "[" + count + "]";
+        }
+        return javaType.substring(0, bracket) + "[" + count + "]" + javaType.substring(bracket);
+    }
+
+    private static String readPrimitive(Type type) {
+        switch (type.kind) {
+            case INT8:
+                return "stream.readByte(exception)";
+            case INT32:
+                return "stream.readInt32(exception)";
+            case INT64:
+                return "stream.readInt64(exception)";
+            case DOUBLE:
+                return "stream.readDouble(exception)";
+            case BOOL:
+                return "stream.readBool(exception)";
+            case STRING:
+                return "stream.readString(exception)";
+            case SYMBOL:
+                return "stream.readInternedString(exception)";
+            case BYTES:
+                return "stream.readByteArray(exception)";
+            case BUFFER:
+                return "stream.readByteBuffer(exception)";
+            default:
+                throw new IllegalStateException(type.kind.name());
+        }
+    }
+
+    private static void generateWrite(Code code, Constructor constructor, boolean fieldFlags) {
+        code.open("public void serializeToStream(AbstractSerializedData stream) {");
+        for (Field field : constructor.fields) {
+            if (field.type.kind == Kind.FLAGS) {
+                code.line("int " + field.name + " = " + (fieldFlags ? "this." + field.name : "0") + ";");
+                for (Field conditional : constructor.fields) {
+                    if (!field.name.equals(conditional.flagsField) || (conditional.type.isPrimitive() && conditional.type.kind != Kind.TRUE)) {
+                        continue;
+                    }
+                    String present = conditional.type.kind == Kind.TRUE ? conditional.name : conditional.name + " != null";
+                    if (fieldFlags) {
+                        code.line(field.name + " = " + present + " ? " + field.name + " | 1 << " + conditional.flagBit + " : " + field.name + " & ~(1 << " + conditional.flagBit + ");");
+                    } else {
+                        code.open("if (" + present + ") {");
+                        code.line(field.name + " |= 1 << " + conditional.flagBit + ";");
+                        code.close("}");
+                    }
+                }
+                code.line("stream.writeByte(" + field.name + ");");
+            } else if (field.type.kind == Kind.TRUE) {
+                continue;
+            } else if (field.flagsField != null) {
+                code.open("if (" + writtenCondition(constructor, field) + ") {");
+                writeValue(code, field.name, field.type);
+                code.close("}");
+            } else {
+                writeValue(code, field.name, field.type);
+            }
+        }
+        code.close("}");
+    }
+
+    /**
+     * Condition under which a conditional field is written, evaluated in serializeToStream and getObjectSize.
+     */
+    private static String writtenCondition(Constructor constructor, Field field) {
+        if (field.type.isPrimitive()) {
+            return "(" + (constructor.hasFieldFlags() ? "this." : "") + field.flagsField + " & 1 << " + field.flagBit + ") != 0";
+        }
+        return field.name + " != null";
+    }
+
+    private static void writeValue(Code code, String value, Type type) {
+        switch (type.kind) {
+            case VECTOR:
+                code.line("stream.writeInt32(" + value + ".length);");
+                String element = value.replaceAll("\\W", "") + "Element";
+                code.open("for (" + type.element.javaType() + " " + element + " : " + value + ") {");
+                writeValue(code, element, type.element);
+                code.close("}");
+                break;
+            case BARE:
+                code.line(value + ".serializeToStream(stream);");
+                break;
+            case BOXED:
+                code.line("TMStore.serializeToStream(stream, " + value + ");");
+                break;
+            case INT8:
+                code.line("stream.writeByte(" + value + ");");
+                break;
+            case INT32:
+                code.line("stream.writeInt32(" + value + ");");
+                break;
+            case INT64:
+                code.line("stream.writeInt64(" + value + ");");
+                break;
+            case DOUBLE:
+                code.line("stream.writeDouble(" + value + ");");
+                break;
+            case BOOL:
+                code.line("stream.writeBool(" + value + ");");
+                break;
+            case STRING:
+            case SYMBOL:
+                code.line("stream.writeString(" + value + ");");
+                break;
+            case BYTES:
+            case BUFFER:
+                code.line("stream.writeByteArray(" + value + ");");
+                break;
+            default:
+                throw new IllegalStateException(type.kind.name());
+        }
+    }
+
+    private static void generateSize(Code code, Constructor constructor) {
+        int fixed = 0;
+        List<Field> variable = new ArrayList<>();
+        for (Field field : constructor.fields) {
+            int size = field.type.fixedSize();
+            if (size >= 0 && field.flagsField == null) {
+                fixed += size;
+            } else if (field.type.kind != Kind.TRUE) {
+                variable.add(field);
+            }
+        }
+        code.open("public int getObjectSize() {");
+        if (variable.isEmpty()) {
+            code.line("return " + fixed + ";");
+            code.close("}");
+            return;
+        }
+        StringBuilder expression = new StringBuilder(fixed > 0 ? String.valueOf(fixed) : "");
+        for (Field field : variable) {
+            String size = sizeExpression(field.name, field.type);
+            if (field.flagsField != null || size == null) {
+                expression = null;
+                break;
+            }
+            if (expression.length() > 0) {
+                expression.append(" + ");
+            }
+            expression.append(size);
+        }
+        if (expression != null) {
+            code.line("return " + expression + ";");
+            code.close("}");
+            return;
+        }
+        code.line("int size = " + fixed + ";");
+        for (Field field : variable) {
+            if (field.flagsField != null) {
+                code.open("if (" + writtenCondition(constructor, field) + ") {");
+                sizeValue(code, field.name, field.type);
+                code.close("}");
+            } else {
+                sizeValue(code, field.name, field.type);
+            }
+        }
+        code.line("return size;");
+        code.close("}");
+    }
+
+    /**
+     * @return the size of a value as a single expression, or null if it needs a loop
+     */
+    private static String sizeExpression(String value, Type type) {
+        int fixed = type.fixedSize();
+        if (fixed >= 0) {
+            return String.valueOf(fixed);
+        }
+        switch (type.kind) {
+            case VECTOR:
+                int elementSize = type.element.fixedSize();
+                return elementSize >= 0 ? "4 + " + value + ".length * " + elementSize : null;
+            case BARE:
+                return value + ".getObjectSize()";
+            case BOXED:
+                return "TMStore.getObjectSize(" + value + ")";
+            case STRING:
+            case SYMBOL:
+                return "AbstractSerializedData.getStringSize(" + value + ")";
+            case BYTES:
+                return "AbstractSerializedData.getByteArraySize(" + value + ".length)";
+            case BUFFER:
+                return "AbstractSerializedData.getByteArraySize(" + value + ".remaining())";
+            default:
+                throw new IllegalStateException(type.kind.name());
+        }
+    }
+
+    private static void sizeValue(Code code, String value, Type type) {
+        String expression = sizeExpression(value, type);
+        if (expression != null) {
+            code.line("size += " + expression + ";");
+            return;
+        }
+        // vectors of variable sized elements
+        code.line("size += 4;");
+        String element = value.replaceAll("\\W", "") + "Element";
+        code.open("for (" + type.element.javaType() + " " + element + " : " + value + ") {");
+        sizeValue(code, element, type.element);
+        code.close("}");
+    }
+
+    // TMApiConstructors
+
+    static String generateConstructors(List<Constructor> constructors) {
+        Code code = new Code();
+        code.line("// Generated from schema/tmapi.tl by TMApiGenerator, do not edit.");
+        code.line("package " + PACKAGE + ";");
+        code.line();
+        code.open("class TMApiConstructors {");
+        code.line();
+        code.open("static void registerAll() {");
+        for (Constructor constructor : constructors) {
+            code.line("TMStore.registerConstructor(" + constructor.layer + ", TMApi." + constructor.className + ".CONSTRUCTOR, TMApi." + constructor.className + "::new);");
+        }
+        code.close("}");
+        code.line();
+        code.close("}");
+        return code.toString();
+    }
+
+    static class Code {
+
+        private final StringBuilder builder = new StringBuilder();
+        private int indent;
+
+        void line() {
+            builder.append('\n');
+        }
+
+        void line(String line) {
+            for (int i = 0; i < indent; i++) {
+                builder.append("    ");
+            }
+            builder.append(line).append('\n');
+        }
+
+        void open(String line) {
+            line(line);
+            indent++;
+        }
+
+        void close(String line) {
+            indent--;
+            line(line);
+        }
+
+        @Override
+        public String toString() {
+            return builder.toString();
+        }
+
+    }
+
+}
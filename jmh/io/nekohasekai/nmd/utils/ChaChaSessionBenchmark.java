@@ -0,0 +1,63 @@
+package io.nekohasekai.nmd.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of ChaChaSession messages per payload size, backend and nonce sequence, run with the gc profiler
+ * to report allocation rates.
+ * <p>
+ * Nonces advance with every message, so a message can only be read once: readMessage is measured in
+ * {@link #roundTrip()}, a client message read by the server, and is the difference to {@link #mkMessage()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChaChaSessionBenchmark {
+
+    @Param({"64", "1024", "16384", "262144", "1048576"})
+    public int size;
+
+    @Param({"bc", "jdk"})
+    public String backend;
+
+    @Param({"random", "counter"})
+    public String nonces;
+
+    private EncUtil.ChaChaSession client;
+    private EncUtil.ChaChaSession server;
+    private byte[] content;
+
+    @Setup
+    public void setup() {
+        EncUtil.INSTANCE.setChaChaBackend(EncUtil.ChaChaBackend.Companion.select(backend));
+        byte[] key = new byte[32];
+        EncUtil.INSTANCE.getSecureRandom().nextBytes(key);
+        int time = (int) (System.currentTimeMillis() / 1000);
+        client = new EncUtil.ChaChaSession(key, time, false);
+        server = new EncUtil.ChaChaSession(key, time, true);
+        if (nonces.equals("counter")) {
+            client.useCounterNonces(true);
+            client.useCounterNonces(false);
+            server.useCounterNonces(true);
+            server.useCounterNonces(false);
+        }
+        content = new byte[size];
+        EncUtil.INSTANCE.getSecureRandom().nextBytes(content);
+    }
+
+    @Benchmark
+    public byte[] mkMessage() {
+        return client.mkMessage(content);
+    }
+
+    @Benchmark
+    public byte[] roundTrip() {
+        return server.readMessage(client.mkMessage(content));
+    }
+
+}
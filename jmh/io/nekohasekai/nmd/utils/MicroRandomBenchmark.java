@@ -0,0 +1,38 @@
+package io.nekohasekai.nmd.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of MicroRandom, the SM3 generator behind layer 0 nonces, per output size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MicroRandomBenchmark {
+
+    @Param({"12", "64", "1024", "16384", "262144", "1048576"})
+    public int size;
+
+    private EncUtil.MicroRandom random;
+    private byte[] output;
+
+    @Setup
+    public void setup() {
+        byte[] seed = new byte[32];
+        EncUtil.INSTANCE.getSecureRandom().nextBytes(seed);
+        random = new EncUtil.MicroRandom(seed);
+        output = new byte[size];
+    }
+
+    @Benchmark
+    public byte[] nextBytes() {
+        random.nextBytes(output);
+        return output;
+    }
+
+}
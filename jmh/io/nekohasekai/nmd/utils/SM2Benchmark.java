@@ -0,0 +1,65 @@
+package io.nekohasekai.nmd.utils;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.math.ec.FixedPointUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the SM2 handshake primitives on an authorization sized payload, run with the gc profiler to
+ * report allocation rates.
+ * <p>
+ * Runs on a throwaway key pair, so the server key is not needed. {@link #publicDecode()} is the server's path, an
+ * engine initialised once per thread, {@link #decrypt()} initialises the engine for every message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SM2Benchmark {
+
+    // a 32 byte session key and an int32 time, as serialized by the client
+    private static final int PAYLOAD_SIZE = 40;
+
+    private ECPublicKeyParameters publicKey;
+    private ECPrivateKeyParameters privateKey;
+    private byte[] payload;
+    private byte[] encrypted;
+
+    @Setup
+    public void setup() {
+        // what EncUtil.warmUp does besides loading the server key
+        FixedPointUtil.precompute(EncUtil.INSTANCE.getSm2Params().getG());
+        ECKeyPairGenerator generator = new ECKeyPairGenerator();
+        generator.init(new ECKeyGenerationParameters(EncUtil.INSTANCE.getSm2Params(), EncUtil.INSTANCE.getSecureRandom()));
+        AsymmetricCipherKeyPair keyPair = generator.generateKeyPair();
+        privateKey = (ECPrivateKeyParameters) keyPair.getPrivate();
+        publicKey = (ECPublicKeyParameters) keyPair.getPublic();
+        payload = new byte[PAYLOAD_SIZE];
+        EncUtil.INSTANCE.getSecureRandom().nextBytes(payload);
+        encrypted = EncUtil.INSTANCE.processSM2(publicKey, true, payload);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return EncUtil.INSTANCE.processSM2(publicKey, true, payload);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return EncUtil.INSTANCE.processSM2(privateKey, false, encrypted);
+    }
+
+    @Benchmark
+    public byte[] publicDecode() {
+        return EncUtil.INSTANCE.publicDecode(privateKey, encrypted);
+    }
+
+}
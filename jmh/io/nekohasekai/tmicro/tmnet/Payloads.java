@@ -0,0 +1,80 @@
+package io.nekohasekai.tmicro.tmnet;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Representative instances of every TMApi type, keyed by the names used as benchmark params.
+ */
+public class Payloads {
+
+    private static final Map<String, Supplier<TMApi.Object>> payloads = new LinkedHashMap<>();
+
+    static {
+        payloads.put("Ok", TMApi.Ok::new);
+        payloads.put("Error", () -> new TMApi.Error(403, "Bad session."));
+        payloads.put("Response", () -> new TMApi.Response(1, new TMApi.Ok()));
+        payloads.put("ConnInitTemp", () -> new TMApi.ConnInitTemp(ByteBuffer.wrap(randomBytes(97))));
+        payloads.put("InitConnection", () -> {
+            TMApi.InitConnection request = new TMApi.InitConnection(TMApi.LAYER, 1, "android", "11", randomBytes(33));
+            request.requestId = 1;
+            return request;
+        });
+        payloads.put("VerifyConnection", () -> {
+            TMApi.VerifyConnection request = new TMApi.VerifyConnection(ByteBuffer.wrap(randomBytes(32)));
+            request.requestId = 2;
+            return request;
+        });
+        payloads.put("AuthenticationCodeTypeTelegramMessage", () -> new TMApi.AuthenticationCodeTypeTelegramMessage(5));
+        payloads.put("AuthenticationCodeTypeSms", () -> new TMApi.AuthenticationCodeTypeSms(5));
+        payloads.put("AuthenticationCodeTypeCall", () -> new TMApi.AuthenticationCodeTypeCall(5));
+        payloads.put("AuthenticationCodeInfo", Payloads::codeInfo);
+        payloads.put("EmailAddressAuthenticationCodeInfo", () -> new TMApi.EmailAddressAuthenticationCodeInfo("a***@example.com", 6));
+        payloads.put("AuthorizationStateWaitPhoneNumber", TMApi.AuthorizationStateWaitPhoneNumber::new);
+        payloads.put("AuthorizationStateWaitCode", () -> new TMApi.AuthorizationStateWaitCode(codeInfo()));
+        payloads.put("AuthorizationStateWaitRegistration", TMApi.AuthorizationStateWaitRegistration::new);
+        payloads.put("AuthorizationStateWaitPassword", () -> new TMApi.AuthorizationStateWaitPassword("hint", true, "a***@example.com"));
+        payloads.put("AuthorizationStateReady", TMApi.AuthorizationStateReady::new);
+        payloads.put("AuthorizationStateLoggingOut", TMApi.AuthorizationStateLoggingOut::new);
+        payloads.put("UpdateAuthorizationState", () -> new TMApi.UpdateAuthorizationState(new TMApi.AuthorizationStateReady()));
+        payloads.put("UpdateSessionTicket", () -> new TMApi.UpdateSessionTicket(randomBytes(101), 7 * 24 * 60 * 60));
+        payloads.put("MessageContainer", () -> new TMApi.MessageContainer(new TMApi.Object[]{
+                new TMApi.UpdateSessionTicket(randomBytes(101), 7 * 24 * 60 * 60),
+                new TMApi.UpdateAuthorizationState(new TMApi.AuthorizationStateWaitPhoneNumber()),
+                new TMApi.Response(4, new TMApi.Ok())
+        }));
+        payloads.put("ResumeConnection", () -> {
+            TMApi.ResumeConnection request = new TMApi.ResumeConnection(TMApi.LAYER);
+            request.requestId = 5;
+            return request;
+        });
+        payloads.put("InitConnectionEx", () -> {
+            TMApi.InitConnectionEx request = new TMApi.InitConnectionEx(1 << 1, TMApi.LAYER, 1, "android", "11", randomBytes(33), randomBytes(72), true, 256);
+            request.requestId = 6;
+            return request;
+        });
+        payloads.put("ResponseUpdateWaitCode", () -> new TMApi.Response(3, new TMApi.UpdateAuthorizationState(new TMApi.AuthorizationStateWaitCode(codeInfo()))));
+    }
+
+    private static TMApi.AuthenticationCodeInfo codeInfo() {
+        return new TMApi.AuthenticationCodeInfo("+12025550123", new TMApi.AuthenticationCodeTypeSms(5), new TMApi.AuthenticationCodeTypeCall(5), 60);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    public static TMApi.Object get(String name) {
+        Supplier<TMApi.Object> payload = payloads.get(name);
+        if (payload == null) {
+            throw new IllegalArgumentException("Unknown payload " + name);
+        }
+        return payload.get();
+    }
+
+}
@@ -0,0 +1,101 @@
+package io.nekohasekai.tmicro.tmnet;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the TMStore codec per TMApi type, run with the gc profiler to report allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TMStoreBenchmark {
+
+    @Param({
+            "Ok",
+            "Error",
+            "Response",
+            "ConnInitTemp",
+            "InitConnection",
+            "VerifyConnection",
+            "AuthenticationCodeTypeTelegramMessage",
+            "AuthenticationCodeTypeSms",
+            "AuthenticationCodeTypeCall",
+            "AuthenticationCodeInfo",
+            "EmailAddressAuthenticationCodeInfo",
+            "AuthorizationStateWaitPhoneNumber",
+            "AuthorizationStateWaitCode",
+            "AuthorizationStateWaitRegistration",
+            "AuthorizationStateWaitPassword",
+            "AuthorizationStateReady",
+            "AuthorizationStateLoggingOut",
+            "UpdateAuthorizationState",
+            "UpdateSessionTicket",
+            "MessageContainer",
+            "ResumeConnection",
+            "InitConnectionEx",
+            "ResponseUpdateWaitCode"
+    })
+    public String type;
+
+    private TMApi.Object object;
+    private byte[] input;
+    private NativeByteBuffer lastInput;
+
+    @Setup
+    public void setup() {
+        object = Payloads.get(type);
+        input = TMStore.serializeToByteArray(object);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (lastInput != null && lastInput.getError() != AbstractSerializedData.ERROR_NONE) {
+            throw new IllegalStateException("Reading " + type + " failed with error " + lastInput.getError());
+        }
+    }
+
+    @Benchmark
+    public int serializeToStream() {
+        NativeByteBuffer buffer = TMStore.serializeToStream(object);
+        int length = buffer.length();
+        buffer.reuse();
+        return length;
+    }
+
+    @Benchmark
+    public byte[] serializeToByteArray() {
+        return TMStore.serializeToByteArray(object);
+    }
+
+    @Benchmark
+    public int serializeToSerializedData() {
+        SerializedData data = new SerializedData();
+        TMStore.serializeToStream(data, object);
+        return data.length();
+    }
+
+    @Benchmark
+    public int calculateSize() {
+        SerializedData data = new SerializedData(true);
+        TMStore.serializeToStream(data, object);
+        return data.length();
+    }
+
+    @Benchmark
+    public int getObjectSize() {
+        return TMStore.getObjectSize(object);
+    }
+
+    // a fresh reader each time, so the allocation budget and error state of the last read do not carry over
+    @Benchmark
+    public TMApi.Object deserializeFromSteam() {
+        lastInput = new NativeByteBuffer(input);
+        return TMStore.deserializeFromSteam(lastInput, false);
+    }
+
+}
@@ -0,0 +1,111 @@
+package io.nekohasekai.nmd
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Live connections by session key, and the verified ones by account, each account has at most one.
+ *
+ * Keys are split over [SHARDS] maps, each counting its own entries, so neither lookups nor counters
+ * are shared by all connections.
+ */
+class ConnectionRegistry {
+
+    companion object {
+        const val SHARDS = 16
+    }
+
+    /**
+     * A key compared by content, the array must not change once it is used as a key.
+     */
+    class Key(val bytes: ByteArray) {
+
+        private val hash = bytes.contentHashCode()
+
+        override fun equals(other: Any?) = other is Key && bytes.contentEquals(other.bytes)
+
+        override fun hashCode() = hash
+
+    }
+
+    private class Shard {
+        val connections = ConcurrentHashMap<Key, ConnectionsManager>()
+        val accounts = ConcurrentHashMap<Key, ConnectionsManager>()
+        val connectionCount = AtomicInteger()
+        val accountCount = AtomicInteger()
+    }
+
+    private val shards = Array(SHARDS) { Shard() }
+
+    private fun shard(key: Key): Shard {
+        val hash = key.hashCode()
+        return shards[(hash xor (hash ushr 16)) and (SHARDS - 1)]
+    }
+
+    operator fun get(sessionKey: ByteArray): ConnectionsManager? {
+        val key = Key(sessionKey)
+        return shard(key).connections[key]
+    }
+
+    fun getByAccount(account: ByteArray): ConnectionsManager? {
+        val key = Key(account)
+        return shard(key).accounts[key]
+    }
+
+    fun register(connection: ConnectionsManager) {
+        val key = Key(connection.sessionKey)
+        val shard = shard(key)
+        if (shard.connections.put(key, connection) == null) {
+            shard.connectionCount.incrementAndGet()
+        }
+    }
+
+    /**
+     * Makes [connection] the one of [account].
+     *
+     * @return the connection it replaces, which the caller tears down
+     */
+    fun bindAccount(account: ByteArray, connection: ConnectionsManager): ConnectionsManager? {
+        val key = Key(account)
+        val shard = shard(key)
+        val previous = shard.accounts.put(key, connection)
+        if (previous == null) {
+            shard.accountCount.incrementAndGet()
+        }
+        return previous.takeIf { it !== connection }
+    }
+
+    /**
+     * Removes [connection], but not a connection that has replaced it under the same account.
+     */
+    fun remove(connection: ConnectionsManager, account: ByteArray?) {
+        val key = Key(connection.sessionKey)
+        val shard = shard(key)
+        if (shard.connections.remove(key, connection)) {
+            shard.connectionCount.decrementAndGet()
+        }
+        if (account != null) {
+            val accountKey = Key(account)
+            val accountShard = shard(accountKey)
+            if (accountShard.accounts.remove(accountKey, connection)) {
+                accountShard.accountCount.decrementAndGet()
+            }
+        }
+    }
+
+    val size get() = shards.sumOf { it.connectionCount.get() }
+
+    val accounts get() = shards.sumOf { it.accountCount.get() }
+
+    fun writeMetrics(builder: StringBuilder) {
+        builder.append("# TYPE nmd_connections gauge\n")
+        for (i in shards.indices) {
+            builder.append("nmd_connections{shard=\"").append(i).append("\"} ").append(shards[i].connectionCount.get()).append('\n')
+        }
+        builder.append("# TYPE nmd_accounts gauge\n")
+        for (i in shards.indices) {
+            builder.append("nmd_accounts{shard=\"").append(i).append("\"} ").append(shards[i].accountCount.get()).append('\n')
+        }
+    }
+
+}
@@ -9,88 +9,261 @@ import io.nekohasekai.ktlib.core.mkLog
 import io.nekohasekai.ktlib.td.core.TdClient
 import io.nekohasekai.nmd.database.Sessions
 import io.nekohasekai.nmd.utils.EncUtil
-import io.nekohasekai.tmicro.tmnet.SerializedData
+import io.nekohasekai.nmd.utils.FrameCodec
+import io.nekohasekai.tmicro.tmnet.AbstractSerializedData
+import io.nekohasekai.tmicro.tmnet.BuffersStorage
+import io.nekohasekai.tmicro.tmnet.NativeByteBuffer
 import io.nekohasekai.tmicro.tmnet.TMApi
 import io.nekohasekai.tmicro.tmnet.TMApi.*
 import io.nekohasekai.tmicro.tmnet.TMStore
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.ClosedReceiveChannelException
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
 import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import org.bouncycastle.crypto.params.ECPublicKeyParameters
+import org.bouncycastle.util.Arrays
+import org.bouncycastle.util.Pack
 import org.jetbrains.exposed.sql.select
 import td.TdApi
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
 
-class ConnectionsManager(val sessionKey: ByteArray, time: Int, val session: DefaultWebSocketServerSession) {
+class ConnectionsManager(val sessionKey: ByteArray, val time: Int, val session: DefaultWebSocketServerSession) {
 
     val chaChaSession = EncUtil.ChaChaSession(sessionKey, time)
     val log = mkLog("Sessions ${session.call.request.origin.remoteHost}#${Base64.encodeUrlSafe(sessionKey).hashCode()}")
 
     companion object {
-        val connections = HashMap<ByteArray, ConnectionsManager>()
-    }
+        val connections = ConnectionRegistry()
 
-    private suspend fun sendRaw(content: ByteArray) = withContext(Dispatchers.IO) {
-        var message = chaChaSession.mkMessage(content)
-        if (message.size > 1024) {
-            message = ZipUtil.gzip(message)
-        }
-        session.send(message)
+        // frames read ahead of the one being handled, per connection
+        var MAILBOX_SIZE = 64
+
+        // requests of one verified connection handled at once
+        var PARALLELISM = 4
+
+        // milliseconds a stopping client may take to close its session database
+        var CLOSE_TIMEOUT = 10_000L
     }
 
-    @Suppress("BlockingMethodInNonBlockingContext")
+    private val outbound = OutboundQueue(session, chaChaSession)
+    private lateinit var writer: Job
+    private lateinit var worker: Job
+
+    // completes once the connection is gone and its client has stopped
+    private val stopped = CompletableDeferred<Unit>()
+
     suspend fun loopEvents() {
 
         log.debug("Connection open")
+        connections.register(this)
+
+        writer = outbound.start(session)
+        val mailbox = Channel<ByteArray>(MAILBOX_SIZE)
+        worker = session.launch(Dispatchers.Default) {
+            processMailbox(mailbox)
+        }
 
         try {
             for (frame in session.incoming) {
-                try {
-                    var data = frame.data
-                    if (data[0] == 0x1f.toByte() && data[1] == 0x8b.toByte()) {
-                        data = ZipUtil.unGzip(data)
-                    }
-                    data = chaChaSession.readMessage(data)
-                    GlobalScope.launch(Dispatchers.Default) {
-                        processRequest(data)
-                    }
-                } catch (e: Exception) {
-                    log.warn(e, "Decrypt failed: ")
-                    //  session.close(CloseReason(CloseReason.Codes.INTERNAL_ERROR, "Bad Request"))
-                }
+                // suspends while the mailbox is full, so a client that floods is no longer read from
+                mailbox.send(frame.data)
             }
+            log.debug("Connection closed")
         } catch (e: ClosedReceiveChannelException) {
             log.debug("Client closed: ${session.closeReason.await()}")
-            onClosed()
-            return
         } catch (e: Throwable) {
             log.debug("Connection error: ${session.closeReason.await()}")
-            onClosed()
-            return
+        } finally {
+            withContext(NonCancellable) {
+                mailbox.close()
+                worker.cancelAndJoin()
+                writer.cancelAndJoin()
+                onClosed()
+            }
         }
 
-        log.debug("Connection closed")
-        onClosed()
+    }
 
+    /**
+     * Decrypts frames in the order they came in, then runs up to [PARALLELISM] requests of a verified connection
+     * at once. Handshake frames, and every frame before the connection is verified, wait for what is running
+     * and run alone, as they change the status and the nonces of the next frame.
+     */
+    private suspend fun processMailbox(mailbox: ReceiveChannel<ByteArray>) = coroutineScope {
+        val permits = Semaphore(PARALLELISM)
+        for (data in mailbox) {
+            val frame = try {
+                readFrame(data)
+            } catch (e: Exception) {
+                log.warn(e, "Read frame failed: ")
+                continue
+            }
+            if (status == Status.VERIFIED && !isHandshake(peekConstructor(frame))) {
+                permits.acquire()
+                launch {
+                    try {
+                        processFrame(frame)
+                    } catch (e: Exception) {
+                        // one failed request must not cancel the worker and the requests next to it
+                        if (e is CancellationException) throw e
+                        log.warn(e, "Process request failed: ")
+                    } finally {
+                        permits.release()
+                    }
+                }
+            } else {
+                repeat(PARALLELISM) { permits.acquire() }
+                try {
+                    processFrame(frame)
+                } catch (e: Exception) {
+                    if (e is CancellationException) throw e
+                    log.warn(e, "Process request failed: ")
+                } finally {
+                    repeat(PARALLELISM) { permits.release() }
+                }
+            }
+        }
     }
 
-    private suspend fun processRequest(data: ByteArray) {
-        val request = try {
-            TMStore.deserializeFromSteam(SerializedData(data), true)
+    @Suppress("BlockingMethodInNonBlockingContext")
+    private fun readFrame(message: ByteArray): NativeByteBuffer {
+        var data = message
+        val envelope = envelopeIn
+        if (!envelope && data[0] == 0x1f.toByte() && data[1] == 0x8b.toByte()) {
+            data = ZipUtil.unGzip(data)
+        }
+        val buffer = BuffersStorage.getInstance().getFreeBuffer(chaChaSession.contentSize(data))
+        try {
+            buffer.position(chaChaSession.decrypt(data, 0, data.size, buffer.buffer.array(), buffer.buffer.arrayOffset()))
+            buffer.flip()
+            return if (envelope) FrameCodec.decode(buffer) else buffer
+        } catch (e: Exception) {
+            buffer.reuse()
+            throw e
+        }
+    }
+
+    private fun peekConstructor(frame: NativeByteBuffer): Int {
+        return if (frame.remaining() >= 4) frame.buffer.getInt(frame.buffer.position()) else 0
+    }
+
+    private suspend fun processFrame(data: NativeByteBuffer) {
+        try {
+            processRequest(data)
+        } finally {
+            data.reuse()
+        }
+    }
+
+    private fun isHandshake(constructor: Int) = when (constructor) {
+        InitConnection.CONSTRUCTOR, VerifyConnection.CONSTRUCTOR, ResumeConnection.CONSTRUCTOR, InitConnectionEx.CONSTRUCTOR -> true
+        else -> false
+    }
+
+    private suspend fun processRequest(data: NativeByteBuffer) {
+        data.setAllocationLimit(Nmd.MAX_REQUEST_ALLOCATION)
+        val header = try {
+            TMStore.deserializeLazy(data, false)
         } catch (e: Throwable) {
             log.warn(e, "Deserialize request failed: ")
+            close()
+            return
+        }
+        if (header == null) {
+            // a frame that does not even start with a known constructor, 0 included, is not worth answering
+            log.debug("Deserialize request failed: error ${data.error}")
+            close()
+            return
+        }
+        if (header.constructor == MessageContainer.CONSTRUCTOR && status == Status.VERIFIED) {
+            val container = readBody(header, data) as MessageContainer? ?: return
+            for (message in container.messages) {
+                if (message !is TMApi.Function) {
+                    close()
+                    return
+                }
+                if (accept(message.constructor, message.requestId)) {
+                    processRequest(message)
+                }
+            }
             return
         }
-        if (request !is TMApi.Function) {
+        if (!header.isFunction) {
             close()
             return
         }
-        processRequest(request)
+
+        // reject before the body is parsed
+        if (!accept(header.constructor, header.requestId)) return
+
+        val request = readBody(header, data) ?: return
+        processRequest(request as TMApi.Function)
     }
 
-    suspend fun close() {
-        session.close(CloseReason(CloseReason.Codes.INTERNAL_ERROR, ":("))
+    private suspend fun accept(constructor: Int, requestId: Int): Boolean {
+        if (status == Status.DENY) {
+            sendError(requestId, 403, "Bad session.")
+            return false
+        }
+        if (status != Status.VERIFIED && !isHandshake(constructor)) {
+            sendError(requestId, 401, "Unauthorized.")
+            return false
+        }
+        return true
+    }
+
+    private fun readBody(header: TMStore.LazyObject, data: NativeByteBuffer): TMApi.Object? {
+        val request = try {
+            header.get()
+        } catch (e: Throwable) {
+            log.warn(e, "Deserialize request failed: ")
+            return null
+        }
+        if (request == null) {
+            log.debug("Deserialize request failed: error ${data.error}")
+        }
+        return request
+    }
+
+    private val closing = AtomicBoolean()
+
+    /**
+     * Tears down a connection replaced by a newer one of its account, without a close handshake and without
+     * waiting, [awaitStopped] returns once its client has let go of the session database.
+     */
+    fun cancel() {
+        closing.set(true)
+        worker.cancel()
+        writer.cancel()
+        session.cancel()
+    }
+
+    suspend fun awaitStopped() = stopped.await()
+
+    suspend fun close(reason: CloseReason = CloseReason(CloseReason.Codes.INTERNAL_ERROR, ":(")) {
+        if (!closing.compareAndSet(false, true)) return
+        batcher?.close()
+        // what is queued goes out before the close frame
+        outbound.close()
+        writer.join()
+        try {
+            session.close(reason)
+        } catch (e: ClosedSendChannelException) {
+            // the client is already gone
+        }
         if (::client.isInitialized) {
             client.stop()
         }
@@ -98,23 +271,49 @@ class ConnectionsManager(val sessionKey: ByteArray, time: Int, val session: Defa
 
 
     enum class Status {
-        START, WAIT_VERIFY, VERIFIED, DENY
+        START, WAIT_VERIFY, RESUMING, VERIFIED, DENY
     }
 
+    @Volatile
     var status = Status.START
+    var layer = 0
+
+    // from layer 5 on, frames carry a FrameCodec byte and are compressed before they are encrypted
+    private var envelopeIn = false
+
+    // objects the server compresses from, null if the client takes no compressed frames
+    private var compressThreshold: Int? = FrameCodec.THRESHOLD
+    private var batcher: SendBatcher? = null
     private lateinit var account: ByteArray
     private lateinit var tempData: ByteArray
 
+    /**
+     * Accepts a connection opened with [ticket], it only has to send [ResumeConnection] to be verified.
+     */
+    fun resume(ticket: SessionTickets.Ticket) {
+        account = ticket.account
+        status = Status.RESUMING
+    }
+
+    private fun upgradeIncoming() {
+        if (layer >= 1) {
+            chaChaSession.useCounterNonces(false)
+        }
+        if (layer >= 5) {
+            envelopeIn = true
+        }
+    }
+
+    // frames queued from here on use the layer's nonces and codecs, the writer switches once it gets here
+    private suspend fun upgradeOutgoing() {
+        outbound.upgrade(layer, compressThreshold)
+    }
+
     private suspend fun processRequest(request: TMApi.Function) {
 
         val requestId = request.requestId
         log.debug("Server received #0x${Integer.toHexString(requestId)} ${request.javaClass.simpleName}")
 
-        if (status == Status.DENY) {
-            sendError(requestId, 403, "Bad session.")
-            return
-        }
-
         when (request) {
             is InitConnection -> {
                 if (status != Status.START) {
@@ -131,21 +330,29 @@ class ConnectionsManager(val sessionKey: ByteArray, time: Int, val session: Defa
                     return
                 }
                 account = request.session
-                val pubKey = try {
-                    ECPublicKeyParameters(EncUtil.sm2Params.curve.decodePoint(request.session), EncUtil.sm2Params)
+                tempData = ByteArray(32)
+                EncUtil.secureRandom.nextBytes(tempData)
+                val data = try {
+                    HandshakeExecutor.submit {
+                        val pubKey = ECPublicKeyParameters(EncUtil.sm2Params.curve.decodePoint(request.session), EncUtil.sm2Params)
+                        EncUtil.processSM2(pubKey, true, tempData)
+                    }
+                } catch (e: HandshakeExecutor.OverloadedException) {
+                    sendError(requestId, 503, "Server busy, try again later.")
+                    return
                 } catch (e: Exception) {
                     log.warn(e, "Encrypt sm2 failed: ")
                     sendError(requestId, 400, "Bad session.")
                     close()
                     return
                 }
-                tempData = ByteArray(32)
-                EncUtil.secureRandom.nextBytes(tempData)
-                val data = EncUtil.processSM2(pubKey, true, tempData)
-                val response = ConnInitTemp()
-                response.data = data
+                val response = ConnInitTemp(ByteBuffer.wrap(data))
                 status = Status.WAIT_VERIFY
+                layer = request.layer
+                // the client switches once it reads the response
+                upgradeIncoming()
                 sendResponse(requestId, response)
+                upgradeOutgoing()
             }
             is VerifyConnection -> {
                 if (status == Status.START) {
@@ -155,7 +362,7 @@ class ConnectionsManager(val sessionKey: ByteArray, time: Int, val session: Defa
                     sendError(requestId, 400, "Connection verified.")
                     return
                 }
-                if (!tempData.contentEquals(request.data)) {
+                if (ByteBuffer.wrap(tempData) != request.data) {
                     status = Status.DENY
                     sendError(requestId, 403, "Bad data.")
                     close()
@@ -166,9 +373,77 @@ class ConnectionsManager(val sessionKey: ByteArray, time: Int, val session: Defa
 
                 onConnected()
             }
-            else -> if (status != Status.VERIFIED) {
-                sendError(requestId, 401, "Unauthorized.")
-                return
+            is InitConnectionEx -> {
+                if (status != Status.START) {
+                    sendError(requestId, 400, "Connection started.")
+                    return
+                }
+                if (request.layer > LAYER) {
+                    sendError(requestId, 501, "Max layer of this server is $LAYER.")
+                    return
+                }
+                if (request.layer < TMStore.getLayer(InitConnectionEx.CONSTRUCTOR)) {
+                    sendError(requestId, 400, "initConnectionEx needs layer ${TMStore.getLayer(InitConnectionEx.CONSTRUCTOR)}.")
+                    return
+                }
+                if (request.session.size != 33) {
+                    sendError(requestId, 400, "Bad session.")
+                    close()
+                    return
+                }
+                val verified = try {
+                    HandshakeExecutor.submit {
+                        val pubKey = ECPublicKeyParameters(EncUtil.sm2Params.curve.decodePoint(request.session), EncUtil.sm2Params)
+                        EncUtil.verifySM2(pubKey, Arrays.concatenate(sessionKey, Pack.intToLittleEndian(time)), request.signature)
+                    }
+                } catch (e: HandshakeExecutor.OverloadedException) {
+                    sendError(requestId, 503, "Server busy, try again later.")
+                    return
+                } catch (e: Exception) {
+                    log.warn(e, "Verify sm2 failed: ")
+                    false
+                }
+                if (!verified) {
+                    status = Status.DENY
+                    sendError(requestId, 403, "Bad signature.")
+                    close()
+                    return
+                }
+                account = request.session
+                layer = request.layer
+                compressThreshold = when {
+                    !request.deflate -> null
+                    (request.flags and (1 shl 1)) != 0 -> request.compressThreshold.coerceAtLeast(0)
+                    else -> FrameCodec.THRESHOLD
+                }
+                status = Status.VERIFIED
+                // requests pipelined behind this one already use the new nonces
+                upgradeIncoming()
+                sendOk(requestId)
+                upgradeOutgoing()
+
+                onConnected()
+            }
+            is ResumeConnection -> {
+                if (status != Status.RESUMING) {
+                    sendError(requestId, 400, "Connection not resumable.")
+                    return
+                }
+                if (request.layer > LAYER) {
+                    sendError(requestId, 501, "Max layer of this server is $LAYER.")
+                    return
+                }
+                if (request.layer < TMStore.getLayer(ResumeConnection.CONSTRUCTOR)) {
+                    sendError(requestId, 400, "resumeConnection needs layer ${TMStore.getLayer(ResumeConnection.CONSTRUCTOR)}.")
+                    return
+                }
+                layer = request.layer
+                status = Status.VERIFIED
+                upgradeIncoming()
+                sendOk(requestId)
+                upgradeOutgoing()
+
+                onConnected()
             }
         }
 
@@ -190,9 +465,16 @@ class ConnectionsManager(val sessionKey: ByteArray, time: Int, val session: Defa
     }
 
     private suspend fun sendUpdate(update: Object) {
-        val data = SerializedData()
-        TMStore.serializeToStream(data, update)
-        sendRaw(data.toByteArray())
+        val batcher = batcher
+        if (batcher != null) {
+            batcher.add(update)
+        } else {
+            outbound.send(update)
+        }
+    }
+
+    private suspend fun sendBatch(batch: List<Object>) {
+        outbound.send(if (batch.size == 1) batch[0] else MessageContainer(batch.toTypedArray()))
     }
 
     private suspend fun sendOk(requestId: Int) {
@@ -208,13 +490,33 @@ class ConnectionsManager(val sessionKey: ByteArray, time: Int, val session: Defa
     }
 
     private suspend fun onConnected() {
-        val account = Nmd.database {
-            Sessions.select { Sessions.key eq sessionKey }.firstOrNull()
+        val replaced = connections.bindAccount(account, this)
+        if (replaced != null) {
+            // the handshake holds every permit here, so the old connection is only cancelled, not waited for
+            log.debug("Replacing the previous connection of the session")
+            replaced.cancel()
+        }
+        if (layer >= 4) {
+            // handshake responses are out, what follows may share frames
+            batcher = SendBatcher(session, ::sendBatch)
+        }
+        if (layer >= 2) {
+            sendUpdate(UpdateSessionTicket(SessionTickets.issue(account, sessionKey), SessionTickets.LIFETIME))
         }
-        if (account == null || account[Sessions.status] == 0) {
+        val record = Nmd.database {
+            Sessions.select { Sessions.key eq account }.firstOrNull()
+        }
+        if (record == null || record[Sessions.status] == 0) {
             sendUpdate(UpdateAuthorizationState(AuthorizationStateWaitPhoneNumber()))
-        } else {
+        } else if (replaced == null) {
             requireClient().start()
+        } else {
+            // the old client has to let go of the session database before ours opens it, a child of the worker
+            // so it is cancelled with this connection
+            session.launch(worker) {
+                replaced.awaitStopped()
+                requireClient().start()
+            }
         }
     }
 
@@ -230,14 +532,31 @@ class ConnectionsManager(val sessionKey: ByteArray, time: Int, val session: Defa
     inner class SessionClient : TdClient() {
 
         init {
-            options databaseDirectory "data/sessions/${Base64.encodeUrlSafe(sessionKey)}"
+            options databaseDirectory "data/sessions/${Base64.encodeUrlSafe(account)}"
             options apiId Nmd.API_ID
             options apiHash Nmd.API_HASH
         }
 
+        private val closed = CompletableDeferred<Unit>()
+
+        /**
+         * Stops the client and waits, up to [CLOSE_TIMEOUT] milliseconds, for TDLib to report it closed,
+         * as [stop] only asks it to close.
+         */
+        suspend fun stopAndWait() {
+            stop()
+            if (withTimeoutOrNull(CLOSE_TIMEOUT) { closed.await() } == null) {
+                log.warn("Client did not close in ${CLOSE_TIMEOUT}ms")
+            }
+        }
+
         override suspend fun onAuthorizationState(authorizationState: TdApi.AuthorizationState) {
             super.onAuthorizationState(authorizationState)
 
+            if (authorizationState is TdApi.AuthorizationStateClosed) {
+                closed.complete(Unit)
+            }
+
             updateStatus(authorizationState)
         }
 
@@ -283,9 +602,13 @@ class ConnectionsManager(val sessionKey: ByteArray, time: Int, val session: Defa
     }
 
     suspend fun onClosed() {
-        connections.remove(sessionKey)
-        if (::client.isInitialized) {
-            client.stop()
+        connections.remove(this, if (::account.isInitialized) account else null)
+        try {
+            if (::client.isInitialized) {
+                client.stopAndWait()
+            }
+        } finally {
+            stopped.complete(Unit)
         }
     }
 
@@ -0,0 +1,79 @@
+package io.nekohasekai.nmd
+
+import io.nekohasekai.nmd.utils.LatencyHistogram
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Runs the SM2 work of handshakes on a fixed number of threads with a bounded queue,
+ * so a reconnect storm cannot take the cores established sessions run on.
+ *
+ * Once the queue is full new handshakes fail fast with [OverloadedException], and the client is told to back off.
+ */
+object HandshakeExecutor {
+
+    var THREADS = (Runtime.getRuntime().availableProcessors() / 2).coerceAtLeast(1)
+    var MAX_QUEUE = 256
+
+    private val executor by lazy {
+        val threadId = AtomicInteger()
+        ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS, ArrayBlockingQueue(MAX_QUEUE)) {
+            Thread(it, "handshake-${threadId.incrementAndGet()}").apply { isDaemon = true }
+        }
+    }
+
+    private val completed = LongAdder()
+    private val failed = LongAdder()
+    private val rejected = LongAdder()
+    private val latency = LatencyHistogram()
+
+    class OverloadedException : RuntimeException("Handshake queue is full")
+
+    /**
+     * Runs [block] on the handshake pool, suspending until it is done.
+     *
+     * @throws OverloadedException if the queue is full
+     */
+    suspend fun <T> submit(block: () -> T): T {
+        val queued = System.nanoTime()
+        return suspendCancellableCoroutine { continuation ->
+            try {
+                executor.execute {
+                    if (!continuation.isActive) return@execute
+                    val result = runCatching(block)
+                    latency.record(System.nanoTime() - queued)
+                    result.onSuccess {
+                        completed.increment()
+                        continuation.resume(it)
+                    }.onFailure {
+                        failed.increment()
+                        continuation.resumeWithException(it)
+                    }
+                }
+            } catch (e: RejectedExecutionException) {
+                rejected.increment()
+                continuation.resumeWithException(OverloadedException())
+            }
+        }
+    }
+
+    fun writeMetrics(builder: StringBuilder) {
+        builder.append("# TYPE nmd_handshake_queue_depth gauge\n")
+        builder.append("nmd_handshake_queue_depth ").append(executor.queue.size).append('\n')
+        builder.append("# TYPE nmd_handshake_active gauge\n")
+        builder.append("nmd_handshake_active ").append(executor.activeCount).append('\n')
+        builder.append("# TYPE nmd_handshakes_total counter\n")
+        builder.append("nmd_handshakes_total{result=\"completed\"} ").append(completed.sum()).append('\n')
+        builder.append("nmd_handshakes_total{result=\"failed\"} ").append(failed.sum()).append('\n')
+        builder.append("nmd_handshakes_total{result=\"rejected\"} ").append(rejected.sum()).append('\n')
+        latency.writeTo(builder, "nmd_handshake_latency_seconds", "Time from queueing a handshake to its completion.")
+    }
+
+}
@@ -16,11 +16,16 @@ import io.nekohasekai.ktlib.td.cli.TdCli
 import io.nekohasekai.ktlib.td.core.TdLoader
 import io.nekohasekai.nmd.database.Sessions
 import io.nekohasekai.nmd.utils.EncUtil
-import io.nekohasekai.tmicro.tmnet.SerializedData
+import io.nekohasekai.nmd.utils.FrameCodec
+import io.nekohasekai.nmd.utils.ReplayFilter
+import io.nekohasekai.tmicro.tmnet.BuffersStorage
+import io.nekohasekai.tmicro.tmnet.NativeByteBuffer
 import kotlinx.coroutines.DEBUG_PROPERTY_NAME
 import kotlinx.coroutines.DEBUG_PROPERTY_VALUE_ON
+import org.bouncycastle.util.Pack
 import org.bouncycastle.util.encoders.Base64
 import java.io.File
+import java.security.MessageDigest
 import java.time.Duration
 import kotlin.math.abs
 import kotlin.properties.Delegates
@@ -31,6 +36,16 @@ object Nmd : TdCli() {
     var API_ID by Delegates.notNull<Int>()
     lateinit var API_HASH: String
 
+    // bytes a single request may allocate while being decoded
+    var MAX_REQUEST_ALLOCATION = 1 shl 20
+
+    // bits of each bucket of the authorization replay filter
+    var REPLAY_FILTER_BITS = 1 shl 20
+    val replayFilter by lazy { ReplayFilter(REPLAY_FILTER_BITS) }
+
+    // bearer token of /metrics, which is not served without one
+    var METRICS_TOKEN: String? = null
+
     @JvmStatic
     fun main(args: Array<String>) {
         TdLoader.tryLoad(File("cache"), true)
@@ -40,6 +55,45 @@ object Nmd : TdCli() {
     override fun onLoad() {
         API_ID = intConfig("API_ID") ?: error("Missing API_ID")
         API_HASH = stringConfig("API_HASH") ?: error("Missing API_HASH")
+        MAX_REQUEST_ALLOCATION = intConfig("MAX_REQUEST_ALLOCATION") ?: MAX_REQUEST_ALLOCATION
+        EncUtil.chaChaBackend = EncUtil.ChaChaBackend.select(stringConfig("CHACHA_BACKEND"))
+        HandshakeExecutor.THREADS = intConfig("HANDSHAKE_THREADS") ?: HandshakeExecutor.THREADS
+        HandshakeExecutor.MAX_QUEUE = intConfig("HANDSHAKE_QUEUE") ?: HandshakeExecutor.MAX_QUEUE
+        SessionTickets.LIFETIME = intConfig("TICKET_LIFETIME") ?: SessionTickets.LIFETIME
+        SessionTickets.KEY_ROTATION = intConfig("TICKET_KEY_ROTATION") ?: SessionTickets.KEY_ROTATION
+        REPLAY_FILTER_BITS = intConfig("REPLAY_FILTER_BITS") ?: REPLAY_FILTER_BITS
+        SendBatcher.WINDOW = intConfig("BATCH_WINDOW")?.toLong() ?: SendBatcher.WINDOW
+        SendBatcher.MAX_SIZE = intConfig("BATCH_SIZE") ?: SendBatcher.MAX_SIZE
+        FrameCodec.THRESHOLD = intConfig("COMPRESS_THRESHOLD") ?: FrameCodec.THRESHOLD
+        FrameCodec.LEVEL = intConfig("COMPRESS_LEVEL") ?: FrameCodec.LEVEL
+        FrameCodec.STREAM_MEMORY = intConfig("STREAM_COMPRESSION_MEMORY")?.let { it.toLong() shl 20 } ?: FrameCodec.STREAM_MEMORY
+        ConnectionsManager.MAILBOX_SIZE = intConfig("MAILBOX_SIZE") ?: ConnectionsManager.MAILBOX_SIZE
+        ConnectionsManager.PARALLELISM = intConfig("REQUEST_PARALLELISM") ?: ConnectionsManager.PARALLELISM
+        ConnectionsManager.CLOSE_TIMEOUT = intConfig("CLIENT_CLOSE_TIMEOUT")?.toLong() ?: ConnectionsManager.CLOSE_TIMEOUT
+        OutboundQueue.CAPACITY = intConfig("OUTBOUND_QUEUE") ?: OutboundQueue.CAPACITY
+        METRICS_TOKEN = stringConfig("METRICS_TOKEN")?.takeIf { it.isNotBlank() }
+    }
+
+    /**
+     * Remembers a token that decrypted and is in time, by its bytes for the lookup before decryption and by
+     * [fields], what it carries, so the same contents encoded differently count as a replay as well.
+     *
+     * @return true if [fields] were seen recently
+     */
+    private fun replayed(token: ByteArray, fields: ByteArray): Boolean {
+        replayFilter.add(token)
+        return !replayFilter.add(fields)
+    }
+
+    private fun writeBufferMetrics(builder: StringBuilder) {
+        val storage = BuffersStorage.getInstance()
+        builder.append("# TYPE nmd_buffers_total counter\n")
+        builder.append("nmd_buffers_total{result=\"hit\"} ").append(storage.hits).append('\n')
+        builder.append("nmd_buffers_total{result=\"miss\"} ").append(storage.misses).append('\n')
+        builder.append("# TYPE nmd_buffers_retained_bytes gauge\n")
+        builder.append("nmd_buffers_retained_bytes ").append(storage.retainedBytes).append('\n')
+        builder.append("# TYPE nmd_compression_streams gauge\n")
+        builder.append("nmd_compression_streams ").append(FrameCodec.streamsOpen).append('\n')
     }
 
     @JvmStatic
@@ -55,6 +109,8 @@ object Nmd : TdCli() {
             forceCreateTables(Sessions)
         }
 
+        EncUtil.warmUp()
+
         LOG_LEVEL = Level.TRACE
 
         install(ForwardedHeaderSupport)
@@ -71,6 +127,27 @@ object Nmd : TdCli() {
                 call.response.header("Location", "http://127.0.0.1")
                 call.respond(HttpStatusCode.TemporaryRedirect)
             }
+            get("/metrics") {
+                val token = METRICS_TOKEN
+                if (token == null) {
+                    call.respond(HttpStatusCode.NotFound)
+                    return@get
+                }
+                val authorization = call.request.authorization()
+                if (authorization == null || !authorization.substringBefore(" ").equals("Bearer", true) ||
+                    !MessageDigest.isEqual(authorization.substringAfter(" ").toByteArray(), token.toByteArray())
+                ) {
+                    call.response.header(HttpHeaders.WWWAuthenticate, "Bearer")
+                    call.respond(HttpStatusCode.Unauthorized)
+                    return@get
+                }
+                val metrics = StringBuilder()
+                HandshakeExecutor.writeMetrics(metrics)
+                OutboundQueue.writeMetrics(metrics)
+                ConnectionsManager.connections.writeMetrics(metrics)
+                writeBufferMetrics(metrics)
+                call.respondText(metrics.toString())
+            }
             webSocket("/") {
                 val authorization = call.request.authorization()
                 if (authorization == null) {
@@ -79,14 +156,52 @@ object Nmd : TdCli() {
                 }
 
                 try {
-                    val data = SerializedData(EncUtil.publicDecode(Base64.decode(authorization.substringAfter(" "))))
-                    val key = data.readByteArray(true)
-                    val time = data.readInt32(true)
-                    val connection = ConnectionsManager(key, time, this)
-                    if (abs((System.currentTimeMillis() / 1000) - time) > 30) {
-                        error("Invalid timeMs")
+                    val token = Base64.decode(authorization.substringAfter(" "))
+                    // a token that got through before is turned away without decrypting it
+                    if (replayFilter.mightContain(token)) {
+                        close(CloseReason(CloseReason.Codes.VIOLATED_POLICY, "Replayed token."))
+                        return@webSocket
+                    }
+                    val connection = if (authorization.substringBefore(" ").equals("Ticket", true)) {
+                        // resumption, symmetric crypto only
+                        val data = NativeByteBuffer(token)
+                        val sealed = data.readByteArray(true)
+                        val ticket = SessionTickets.open(sealed) ?: error("Invalid ticket")
+                        val nonce = data.readByteArray(true)
+                        val time = data.readInt32(true)
+                        if (nonce.size < 16) {
+                            error("Invalid nonce")
+                        }
+                        if (data.remaining() != 0) {
+                            error("Invalid token")
+                        }
+                        if (abs((System.currentTimeMillis() / 1000) - time) > 30) {
+                            error("Invalid timeMs")
+                        }
+                        if (replayed(token, sealed + nonce + Pack.intToLittleEndian(time))) null
+                        else ConnectionsManager(SessionTickets.deriveKey(ticket, nonce, time), time, this).apply { resume(ticket) }
+                    } else {
+                        val data = NativeByteBuffer(HandshakeExecutor.submit {
+                            EncUtil.publicDecode(token)
+                        })
+                        val key = data.readByteArray(true)
+                        val time = data.readInt32(true)
+                        if (data.remaining() != 0) {
+                            error("Invalid token")
+                        }
+                        if (abs((System.currentTimeMillis() / 1000) - time) > 30) {
+                            error("Invalid timeMs")
+                        }
+                        if (replayed(token, key + Pack.intToLittleEndian(time))) null
+                        else ConnectionsManager(key, time, this)
+                    }
+                    if (connection == null) {
+                        close(CloseReason(CloseReason.Codes.VIOLATED_POLICY, "Replayed token."))
+                        return@webSocket
                     }
                     connection.loopEvents()
+                } catch (e: HandshakeExecutor.OverloadedException) {
+                    close(CloseReason(CloseReason.Codes.TRY_AGAIN_LATER, "Server busy, try again later."))
                 } catch (e: Exception) {
                     e.printStackTrace()
                     call.respond(HttpStatusCode.BadRequest, "Bad request")
@@ -0,0 +1,166 @@
+package io.nekohasekai.nmd
+
+import cn.hutool.core.util.ZipUtil
+import io.ktor.http.cio.websocket.*
+import io.nekohasekai.nmd.utils.EncUtil
+import io.nekohasekai.nmd.utils.FrameCodec
+import io.nekohasekai.nmd.utils.LatencyHistogram
+import io.nekohasekai.tmicro.tmnet.BuffersStorage
+import io.nekohasekai.tmicro.tmnet.NativeByteBuffer
+import io.nekohasekai.tmicro.tmnet.TMApi
+import io.nekohasekai.tmicro.tmnet.TMStore
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * The one writer of a connection, senders only serialize and queue, a coroutine compresses, seals and writes
+ * in queue order, draining everything pending before it flushes the socket once.
+ *
+ * Senders suspend while [CAPACITY] frames are queued, what they send once the queue is closed is dropped.
+ */
+class OutboundQueue(private val session: WebSocketSession, private val chaChaSession: EncUtil.ChaChaSession) {
+
+    companion object {
+
+        var CAPACITY = 256
+
+        private val depth = AtomicLong()
+        private val frames = LongAdder()
+        private val flushes = LongAdder()
+        private val latency = LatencyHistogram()
+
+        fun writeMetrics(builder: StringBuilder) {
+            builder.append("# TYPE nmd_outbound_queue_depth gauge\n")
+            builder.append("nmd_outbound_queue_depth ").append(depth.get()).append('\n')
+            builder.append("# TYPE nmd_outbound_frames_total counter\n")
+            builder.append("nmd_outbound_frames_total ").append(frames.sum()).append('\n')
+            builder.append("# TYPE nmd_outbound_flushes_total counter\n")
+            builder.append("nmd_outbound_flushes_total ").append(flushes.sum()).append('\n')
+            latency.writeTo(builder, "nmd_outbound_latency_seconds", "Time from queueing a frame to writing it.")
+        }
+
+    }
+
+    // data is null for the switch to the layer's outgoing framing
+    private class Pending(val data: NativeByteBuffer?, val layer: Int, val compressThreshold: Int?, val queued: Long)
+
+    private val channel = Channel<Pending>(CAPACITY)
+
+    // owned by the writer
+    private var envelope = false
+    private var compressThreshold: Int? = null
+    private var stream: FrameCodec.Stream? = null
+
+    fun start(scope: CoroutineScope): Job = scope.launch(Dispatchers.Default) {
+        try {
+            for (first in channel) {
+                write(first)
+                while (true) {
+                    write(channel.poll() ?: break)
+                }
+                session.flush()
+                flushes.increment()
+            }
+        } finally {
+            // senders suspended on a full queue get through and are dropped here
+            channel.close()
+            while (true) {
+                val pending = channel.poll() ?: break
+                depth.decrementAndGet()
+                pending.data?.reuse()
+            }
+            stream?.close()
+            stream = null
+        }
+    }
+
+    /**
+     * Queues [update] behind everything queued before.
+     */
+    suspend fun send(update: TMApi.Object) {
+        val data = BuffersStorage.getInstance().getFreeBuffer(TMStore.getObjectSize(update) + 1)
+        // room for the codec byte, skipped before layer 5
+        data.writeByte(FrameCodec.NONE)
+        TMStore.serializeToStream(data, update)
+        enqueue(Pending(data, 0, null, System.nanoTime()))
+    }
+
+    /**
+     * Frames queued after this call use the nonces and codecs of [layer], objects from [compressThreshold] bytes on
+     * are compressed, none if it is null.
+     */
+    suspend fun upgrade(layer: Int, compressThreshold: Int?) {
+        enqueue(Pending(null, layer, compressThreshold, System.nanoTime()))
+    }
+
+    private suspend fun enqueue(pending: Pending) {
+        depth.incrementAndGet()
+        try {
+            channel.send(pending)
+        } catch (e: ClosedSendChannelException) {
+            // the connection is going away, nothing more reaches the client
+            depth.decrementAndGet()
+            pending.data?.reuse()
+        } catch (e: Throwable) {
+            depth.decrementAndGet()
+            pending.data?.reuse()
+            throw e
+        }
+    }
+
+    /**
+     * Lets the writer finish what is queued, then stop, calls after the first do nothing.
+     */
+    fun close() {
+        channel.close()
+    }
+
+    private suspend fun write(pending: Pending) {
+        depth.decrementAndGet()
+        var data = pending.data ?: run {
+            applyUpgrade(pending.layer, pending.compressThreshold)
+            return
+        }
+        try {
+            var message: ByteArray
+            if (envelope) {
+                val threshold = compressThreshold
+                if (threshold != null) {
+                    data = stream?.encode(data) ?: FrameCodec.encode(data, threshold)
+                }
+                message = chaChaSession.mkMessage(data.buffer.array(), data.buffer.arrayOffset(), data.length())
+            } else {
+                message = chaChaSession.mkMessage(data.buffer.array(), data.buffer.arrayOffset() + 1, data.length() - 1)
+                if (message.size > 1024) {
+                    // before layer 5, the ciphertext itself is gzipped
+                    message = ZipUtil.gzip(message)
+                }
+            }
+            session.outgoing.send(Frame.Binary(true, message))
+        } finally {
+            data.reuse()
+        }
+        frames.increment()
+        latency.record(System.nanoTime() - pending.queued)
+    }
+
+    private fun applyUpgrade(layer: Int, threshold: Int?) {
+        if (layer >= 1) {
+            chaChaSession.useCounterNonces(true)
+        }
+        if (layer >= 5) {
+            envelope = true
+            compressThreshold = threshold
+        }
+        if (layer >= 6 && threshold != null) {
+            stream = FrameCodec.openStream()
+        }
+    }
+
+}
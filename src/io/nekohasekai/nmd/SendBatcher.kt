@@ -0,0 +1,74 @@
+package io.nekohasekai.nmd
+
+import io.nekohasekai.tmicro.tmnet.TMApi
+import io.nekohasekai.tmicro.tmnet.TMStore
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Collects the objects sent to a layer 4 connection for up to [WINDOW] milliseconds or [MAX_SIZE] bytes,
+ * then hands them to [send] together, to be sealed in one frame.
+ *
+ * Objects are sent in the order they were added, and [send] is never called concurrently.
+ */
+class SendBatcher(private val scope: CoroutineScope, private val send: suspend (List<TMApi.Object>) -> Unit) {
+
+    companion object {
+        var WINDOW = 5L
+        var MAX_SIZE = 16 * 1024
+    }
+
+    private val mutex = Mutex()
+    private var pending = ArrayList<TMApi.Object>()
+    private var size = 0
+    private var timer: Job? = null
+    private var closed = false
+
+    suspend fun add(update: TMApi.Object) = mutex.withLock {
+        if (closed) return@withLock
+        pending.add(update)
+        size += TMStore.getObjectSize(update)
+        if (size >= MAX_SIZE) {
+            drain()
+        } else if (timer == null) {
+            timer = scope.launch {
+                delay(WINDOW)
+                mutex.withLock {
+                    // so drain does not cancel the coroutine it runs in
+                    timer = null
+                    drain()
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends what is pending right away.
+     */
+    suspend fun flush() = mutex.withLock {
+        drain()
+    }
+
+    /**
+     * Sends what is pending, objects added afterwards are dropped.
+     */
+    suspend fun close() = mutex.withLock {
+        closed = true
+        drain()
+    }
+
+    private suspend fun drain() {
+        timer?.cancel()
+        timer = null
+        if (pending.isEmpty()) return
+        val batch = pending
+        pending = ArrayList()
+        size = 0
+        send(batch)
+    }
+
+}
@@ -0,0 +1,111 @@
+package io.nekohasekai.nmd
+
+import io.nekohasekai.nmd.utils.EncUtil
+import org.bouncycastle.crypto.digests.SM3Digest
+import org.bouncycastle.util.Pack
+import java.util.concurrent.TimeUnit
+
+/**
+ * Resumption tickets, issued to verified connections so they can reconnect without any SM2 operation.
+ *
+ * A ticket is the account and the session key of the connection that got it, sealed with the current ticket key:
+ * `keyId:int32 nonce:12 sealed(account:33 secret:32 expiresAt:int64)`. Ticket keys live only in memory,
+ * rotate every [KEY_ROTATION] seconds and are kept as long as tickets sealed with them may be valid.
+ */
+object SessionTickets {
+
+    // seconds
+    var LIFETIME = TimeUnit.DAYS.toSeconds(7).toInt()
+    var KEY_ROTATION = TimeUnit.HOURS.toSeconds(12).toInt()
+
+    private const val ACCOUNT_SIZE = 33
+    private const val SECRET_SIZE = 32
+    private const val CONTENT_SIZE = ACCOUNT_SIZE + SECRET_SIZE + 8
+    private const val HEADER_SIZE = 4 + EncUtil.ChaChaCipher.NONCE_SIZE
+
+    class Ticket(val account: ByteArray, val secret: ByteArray, val expiresAt: Long)
+
+    private class TicketKey(val id: Int, val createdAt: Long) {
+
+        // tickets may be opened twice in a row with the same nonce, which the JDK backend refuses
+        val cipher = EncUtil.BcChaChaCipher(ByteArray(32).also { EncUtil.secureRandom.nextBytes(it) })
+
+    }
+
+    @Volatile
+    private var keys = emptyList<TicketKey>()
+    private var nextKeyId = 0
+
+    private fun now() = System.currentTimeMillis() / 1000
+
+    /**
+     * Replaces the ticket key used for new tickets, dropping keys whose tickets have all expired.
+     */
+    @Synchronized
+    fun rotate() {
+        val now = now()
+        keys = listOf(TicketKey(nextKeyId++, now)) + keys.filter { now - it.createdAt < KEY_ROTATION + LIFETIME }
+    }
+
+    @Synchronized
+    private fun currentKey(): TicketKey {
+        val key = keys.firstOrNull()
+        if (key == null || now() - key.createdAt >= KEY_ROTATION) {
+            rotate()
+        }
+        return keys.first()
+    }
+
+    fun issue(account: ByteArray, secret: ByteArray): ByteArray {
+        val content = ByteArray(CONTENT_SIZE + EncUtil.ChaChaCipher.MAC_SIZE)
+        System.arraycopy(account, 0, content, 0, ACCOUNT_SIZE)
+        System.arraycopy(secret, 0, content, ACCOUNT_SIZE, SECRET_SIZE)
+        Pack.longToLittleEndian(now() + LIFETIME, content, ACCOUNT_SIZE + SECRET_SIZE)
+
+        val key = currentKey()
+        val ticket = ByteArray(HEADER_SIZE + content.size)
+        Pack.intToLittleEndian(key.id, ticket, 0)
+        synchronized(key) {
+            EncUtil.secureRandom.nextBytes(key.cipher.nonce)
+            System.arraycopy(key.cipher.nonce, 0, ticket, 4, EncUtil.ChaChaCipher.NONCE_SIZE)
+            key.cipher.seal(content, 0, CONTENT_SIZE, ticket, HEADER_SIZE)
+        }
+        return ticket
+    }
+
+    /**
+     * @return the ticket, or null if it is malformed, forged, sealed with a dropped key or expired
+     */
+    fun open(ticket: ByteArray): Ticket? {
+        if (ticket.size != HEADER_SIZE + CONTENT_SIZE + EncUtil.ChaChaCipher.MAC_SIZE) return null
+        val id = Pack.littleEndianToInt(ticket, 0)
+        val key = keys.find { it.id == id } ?: return null
+        val content = ByteArray(CONTENT_SIZE)
+        try {
+            synchronized(key) {
+                System.arraycopy(ticket, 4, key.cipher.nonce, 0, EncUtil.ChaChaCipher.NONCE_SIZE)
+                key.cipher.open(ticket, HEADER_SIZE, ticket.size - HEADER_SIZE, content, 0)
+            }
+        } catch (e: Exception) {
+            return null
+        }
+        val expiresAt = Pack.littleEndianToLong(content, ACCOUNT_SIZE + SECRET_SIZE)
+        if (expiresAt < now()) return null
+        return Ticket(content.copyOf(ACCOUNT_SIZE), content.copyOfRange(ACCOUNT_SIZE, ACCOUNT_SIZE + SECRET_SIZE), expiresAt)
+    }
+
+    /**
+     * Session key of a resumed connection, SM3 of the ticket secret, the client's [nonce] and [time].
+     */
+    fun deriveKey(ticket: Ticket, nonce: ByteArray, time: Int): ByteArray {
+        val digest = SM3Digest()
+        digest.update(ticket.secret, 0, ticket.secret.size)
+        digest.update(nonce, 0, nonce.size)
+        val timeBytes = Pack.intToLittleEndian(time)
+        digest.update(timeBytes, 0, timeBytes.size)
+        val key = ByteArray(digest.digestSize)
+        digest.doFinal(key, 0)
+        return key
+    }
+
+}
@@ -1,32 +1,55 @@
 package io.nekohasekai.nmd.utils
 
-import cn.hutool.core.io.IoUtil
 import cn.hutool.core.io.resource.ResourceUtil
 import cn.hutool.crypto.BCUtil.toDomainParams
 import okhttp3.internal.and
 import org.bouncycastle.crypto.CipherParameters
+import org.bouncycastle.crypto.InvalidCipherTextException
 import org.bouncycastle.crypto.digests.SM3Digest
 import org.bouncycastle.crypto.ec.CustomNamedCurves
+import org.bouncycastle.crypto.engines.ChaCha7539Engine
 import org.bouncycastle.crypto.engines.SM2Engine
-import org.bouncycastle.crypto.modes.ChaCha20Poly1305
+import org.bouncycastle.crypto.macs.Poly1305
 import org.bouncycastle.crypto.params.*
 import org.bouncycastle.crypto.prng.DigestRandomGenerator
 import org.bouncycastle.crypto.prng.RandomGenerator
+import org.bouncycastle.crypto.signers.SM2Signer
+import org.bouncycastle.math.ec.FixedPointUtil
 import org.bouncycastle.util.Arrays
+import org.bouncycastle.util.Pack
 import java.math.BigInteger
 import java.security.SecureRandom
 import java.util.*
+import javax.crypto.AEADBadTagException
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
 
 object EncUtil {
 
     var secureRandom = SecureRandom()
 
+    // engines are reused per thread, processBlock never suspends so coroutines cannot interleave on one
+    private val sm2Engine = ThreadLocal.withInitial { SM2Engine() }
+    private val sm2DecryptEngine = ThreadLocal<DecryptEngine>()
+
+    private class DecryptEngine(val key: ECPrivateKeyParameters) {
+        val engine = SM2Engine().apply { init(false, key) }
+    }
+
     fun processSM2(key: CipherParameters, forEncrypt: Boolean, content: ByteArray): ByteArray {
-        val engine = SM2Engine()
+        val engine = sm2Engine.get()
         engine.init(forEncrypt, if (forEncrypt) ParametersWithRandom(key, secureRandom) else key)
         return engine.processBlock(content, 0, content.size)
     }
 
+    fun verifySM2(publicKey: ECPublicKeyParameters, message: ByteArray, signature: ByteArray): Boolean {
+        val signer = SM2Signer()
+        signer.init(false, publicKey)
+        signer.update(message, 0, message.size)
+        return signer.verifySignature(signature)
+    }
+
     val sm2Params: ECDomainParameters by lazy {
         toDomainParams(CustomNamedCurves.getByName("sm2p256v1"))
     }
@@ -39,9 +62,32 @@ object EncUtil {
         privKey = ECPrivateKeyParameters(BigInteger(ResourceUtil.readBytes("private.key")), sm2Params)
     }
 
+    /**
+     * Loads the private key and precomputes the comb table of the sm2p256v1 generator, used for the kG of every
+     * encryption, so the first handshakes after a start do not pay for it.
+     *
+     * Decryption multiplies the point sent by the client, which changes every time and cannot be precomputed.
+     */
+    fun warmUp() {
+        loadPrivKey()
+        FixedPointUtil.precompute(sm2Params.g)
+    }
+
     fun publicDecode(content: ByteArray): ByteArray {
         loadPrivKey()
-        return processSM2(privKey, false, content)
+        return publicDecode(privKey, content)
+    }
+
+    /**
+     * Decrypts [content] with [key] on an engine kept per thread, initialised again only when the key changes.
+     */
+    fun publicDecode(key: ECPrivateKeyParameters, content: ByteArray): ByteArray {
+        var engine = sm2DecryptEngine.get()
+        if (engine == null || engine.key !== key) {
+            engine = DecryptEngine(key)
+            sm2DecryptEngine.set(engine)
+        }
+        return engine.engine.processBlock(content, 0, content.size)
     }
 
     class MicroRandom(
@@ -94,10 +140,222 @@ object EncUtil {
         }
     }
 
+    /**
+     * RFC 8439 ChaCha20-Poly1305 without associated data for one direction of a session.
+     *
+     * Not thread safe, the [nonce] is rewritten in place before every [seal] or [open].
+     */
+    interface ChaChaCipher {
+
+        val nonce: ByteArray
+
+        /** @return the message length, [length] + [MAC_SIZE] */
+        fun seal(input: ByteArray, inOffset: Int, length: Int, output: ByteArray, outOffset: Int): Int
+
+        /**
+         * @return the plaintext length, [length] - [MAC_SIZE]
+         * @throws InvalidCipherTextException if the message does not authenticate
+         */
+        fun open(input: ByteArray, inOffset: Int, length: Int, output: ByteArray, outOffset: Int): Int
+
+        companion object {
+            const val NONCE_SIZE = 12
+            const val MAC_SIZE = 16
+        }
+
+    }
+
+    /**
+     * Pure Java implementation over BouncyCastle's ChaCha7539Engine and Poly1305, producing the same messages
+     * as its ChaCha20Poly1305 but keyed once and reusing all of its state, so a message allocates nothing.
+     */
+    class BcChaChaCipher(key: ByteArray) : ChaChaCipher {
+
+        private val engine = ChaCha7539Engine()
+        private val mac = Poly1305()
+        private val params = ParametersWithIV(null, ByteArray(ChaChaCipher.NONCE_SIZE))
+        private val macKey = KeyParameter(ByteArray(32))
+        private val block = ByteArray(64)
+        private val tag = ByteArray(ChaChaCipher.MAC_SIZE)
+
+        override val nonce: ByteArray get() = params.iv
+
+        init {
+            engine.init(true, ParametersWithIV(KeyParameter(key), params.iv))
+        }
+
+        override fun seal(input: ByteArray, inOffset: Int, length: Int, output: ByteArray, outOffset: Int): Int {
+            start()
+            engine.processBytes(input, inOffset, length, output, outOffset)
+            mac.update(output, outOffset, length)
+            finish(length, output, outOffset + length)
+            return length + ChaChaCipher.MAC_SIZE
+        }
+
+        override fun open(input: ByteArray, inOffset: Int, length: Int, output: ByteArray, outOffset: Int): Int {
+            val size = length - ChaChaCipher.MAC_SIZE
+            if (size < 0) throw InvalidCipherTextException("data too short")
+            start()
+            mac.update(input, inOffset, size)
+            finish(size, tag, 0)
+            if (!Arrays.constantTimeAreEqual(ChaChaCipher.MAC_SIZE, tag, 0, input, inOffset + size)) {
+                throw InvalidCipherTextException("mac check in ChaCha20Poly1305 failed")
+            }
+            engine.processBytes(input, inOffset, size, output, outOffset)
+            return size
+        }
+
+        // the first keystream block keys Poly1305, the message is encrypted from block 1
+        private fun start() {
+            engine.init(true, params)
+            Arrays.fill(block, 0)
+            engine.processBytes(block, 0, block.size, block, 0)
+            System.arraycopy(block, 0, macKey.key, 0, macKey.key.size)
+            mac.init(macKey)
+        }
+
+        private fun finish(length: Int, output: ByteArray, outOffset: Int) {
+            Arrays.fill(block, 0)
+            mac.update(block, 0, (16 - (length and 15)) and 15)
+            // associated data length, always 0, then the ciphertext length
+            Pack.longToLittleEndian(length.toLong(), block, 8)
+            mac.update(block, 0, 16)
+            mac.doFinal(output, outOffset)
+        }
+
+    }
+
+    /**
+     * The JDK's ChaCha20-Poly1305 Cipher, intrinsified on recent JDKs.
+     * Allocates a nonce spec per message as the JCE API requires.
+     */
+    class JdkChaChaCipher(key: ByteArray) : ChaChaCipher {
+
+        private val cipher = Cipher.getInstance("ChaCha20-Poly1305")
+        private val key = SecretKeySpec(key, "ChaCha20")
+
+        override val nonce = ByteArray(ChaChaCipher.NONCE_SIZE)
+
+        override fun seal(input: ByteArray, inOffset: Int, length: Int, output: ByteArray, outOffset: Int): Int {
+            cipher.init(Cipher.ENCRYPT_MODE, key, IvParameterSpec(nonce))
+            return cipher.doFinal(input, inOffset, length, output, outOffset)
+        }
+
+        override fun open(input: ByteArray, inOffset: Int, length: Int, output: ByteArray, outOffset: Int): Int {
+            if (length < ChaChaCipher.MAC_SIZE) throw InvalidCipherTextException("data too short")
+            cipher.init(Cipher.DECRYPT_MODE, key, IvParameterSpec(nonce))
+            try {
+                return cipher.doFinal(input, inOffset, length, output, outOffset)
+            } catch (e: AEADBadTagException) {
+                throw InvalidCipherTextException(e.message, e)
+            }
+        }
+
+    }
+
+    enum class ChaChaBackend(val create: (ByteArray) -> ChaChaCipher) {
+
+        BC(::BcChaChaCipher), JDK(::JdkChaChaCipher);
+
+        val isAvailable by lazy {
+            runCatching { create(ByteArray(32)) }.isSuccess
+        }
+
+        companion object {
+
+            /**
+             * Backend named by [name], or the fastest available one on this host if it is null or `auto`.
+             */
+            fun select(name: String?): ChaChaBackend {
+                if (name == null || name.equals("auto", true)) return fastest()
+                val backend = values().find { it.name.equals(name, true) } ?: error("Unknown ChaCha20-Poly1305 backend $name")
+                check(backend.isAvailable) { "ChaCha20-Poly1305 backend $backend is not available" }
+                return backend
+            }
+
+            /**
+             * Available backend that seals and opens 1 KB messages fastest, timed only once every backend has run
+             * enough to be compiled, so neither is measured in the interpreter. Set CHACHA_BACKEND to skip this.
+             */
+            fun fastest(): ChaChaBackend {
+                val available = values().filter { it.isAvailable }
+                repeat(WARMUP_ROUNDS) {
+                    available.forEach { measure(it) }
+                }
+                return available.minByOrNull { measure(it) } ?: BC
+            }
+
+            private const val WARMUP_ROUNDS = 4
+
+            // best of a few short runs over 1 KB messages
+            private fun measure(backend: ChaChaBackend): Long {
+                // like a session, each direction has its own cipher
+                val key = ByteArray(32).also { secureRandom.nextBytes(it) }
+                val sealer = backend.create(key)
+                val opener = backend.create(key)
+                val content = ByteArray(1024)
+                val message = ByteArray(content.size + ChaChaCipher.MAC_SIZE)
+                var best = Long.MAX_VALUE
+                var counter = 0
+                repeat(8) {
+                    val start = System.nanoTime()
+                    repeat(512) {
+                        Pack.intToLittleEndian(++counter, sealer.nonce, 0)
+                        Pack.intToLittleEndian(counter, opener.nonce, 0)
+                        sealer.seal(content, 0, content.size, message, 0)
+                        opener.open(message, 0, message.size, content, 0)
+                    }
+                    best = minOf(best, System.nanoTime() - start)
+                }
+                return best
+            }
+
+        }
+
+    }
+
+    var chaChaBackend = ChaChaBackend.BC
+
+    /**
+     * Nonces of one direction of a session, written in place.
+     */
+    interface NonceSequence {
+
+        fun next(nonce: ByteArray)
+
+    }
+
+    /**
+     * Layer 0 nonces, drawn from the SM3 [MicroRandom] stream seeded by the session.
+     */
+    class RandomNonceSequence(private val random: MicroRandom) : NonceSequence {
+
+        override fun next(nonce: ByteArray) = random.nextBytes(nonce)
+
+    }
+
+    /**
+     * Layer 1 nonces, a 64-bit message counter xored into the last 8 bytes of a per direction salt.
+     * They never repeat within a direction and need no hashing per message.
+     */
+    class CounterNonceSequence(private val salt: ByteArray) : NonceSequence {
+
+        private var counter = 0L
+
+        override fun next(nonce: ByteArray) {
+            val value = counter++
+            System.arraycopy(salt, 0, nonce, 0, salt.size)
+            for (i in 0 until 8) {
+                nonce[4 + i] = (nonce[4 + i].toInt() xor (value ushr (i * 8)).toInt()).toByte()
+            }
+        }
+
+    }
+
     class ChaChaSession(val key: ByteArray, val time: Int, val isServer: Boolean = true) {
 
-        private val nonceIn = MicroRandom(genSeed(false))
-        private val nonceOut = MicroRandom(genSeed(true))
+        private var nonceIn: NonceSequence = RandomNonceSequence(MicroRandom(genSeed(false)))
+        private var nonceOut: NonceSequence = RandomNonceSequence(MicroRandom(genSeed(true)))
 
         /** @noinspection SameParameterValue
          */
@@ -109,27 +367,70 @@ object EncUtil {
             }
         }
 
-        fun mkMessage(content: ByteArray): ByteArray {
-            val nonce = ByteArray(12)
-            nonceOut.nextBytes(nonce)
-            return process(true, content, nonce)
+        // one cipher per direction, each keyed once
+        private val cipherOut = chaChaBackend.create(key)
+        private val cipherIn = chaChaBackend.create(key)
+
+        /**
+         * Switches one direction to the layer 1 [CounterNonceSequence], from its next message on.
+         */
+        fun useCounterNonces(output: Boolean) {
+            val digest = SM3Digest()
+            val seed = Arrays.concatenate(genSeed(output), "nonce".toByteArray())
+            val salt = ByteArray(digest.digestSize)
+            digest.update(seed, 0, seed.size)
+            digest.doFinal(salt, 0)
+            val nonces = CounterNonceSequence(salt.copyOf(ChaChaCipher.NONCE_SIZE))
+            if (output) {
+                synchronized(cipherOut) { nonceOut = nonces }
+            } else {
+                synchronized(cipherIn) { nonceIn = nonces }
+            }
         }
 
-        fun readMessage(message: ByteArray): ByteArray {
-            val nonce = ByteArray(12)
-            nonceIn.nextBytes(nonce)
-            return process(false, message, nonce)
+        /**
+         * Encrypts [length] bytes of [input] from [inOffset] into [output] from [outOffset],
+         * which needs [length] + [ChaChaCipher.MAC_SIZE] bytes free. [input] and [output] may be the same region.
+         *
+         * @return the message length
+         */
+        fun encrypt(input: ByteArray, inOffset: Int, length: Int, output: ByteArray, outOffset: Int): Int = synchronized(cipherOut) {
+            nonceOut.next(cipherOut.nonce)
+            cipherOut.seal(input, inOffset, length, output, outOffset)
         }
 
-        private val cipher = ChaCha20Poly1305()
-        private fun process(forEncryption: Boolean, content: ByteArray, nonce: ByteArray): ByteArray {
-            val parameters = AEADParameters(KeyParameter(key), 128, nonce)
-            cipher.init(forEncryption, parameters)
-            val result = ByteArray(content.size + IoUtil.DEFAULT_BUFFER_SIZE)
-            val offset = cipher.processBytes(content, 0, content.size, result, 0)
-            return Arrays.copyOfRange(result, 0, offset + cipher.doFinal(result, offset))
+        /**
+         * Decrypts the [length] byte message in [input] from [inOffset] into [output] from [outOffset],
+         * which needs [length] - [ChaChaCipher.MAC_SIZE] bytes free. [input] and [output] may be the same region.
+         *
+         * @return the plaintext length
+         * @throws InvalidCipherTextException if the message does not authenticate
+         */
+        fun decrypt(input: ByteArray, inOffset: Int, length: Int, output: ByteArray, outOffset: Int): Int = synchronized(cipherIn) {
+            nonceIn.next(cipherIn.nonce)
+            cipherIn.open(input, inOffset, length, output, outOffset)
+        }
+
+        fun mkMessage(content: ByteArray) = mkMessage(content, 0, content.size)
+
+        /**
+         * Encrypts [length] bytes of [content] from [offset] into an exactly sized message.
+         */
+        fun mkMessage(content: ByteArray, offset: Int, length: Int): ByteArray {
+            val result = ByteArray(length + ChaChaCipher.MAC_SIZE)
+            encrypt(content, offset, length, result, 0)
+            return result
         }
 
+        fun readMessage(message: ByteArray): ByteArray {
+            val result = ByteArray(contentSize(message))
+            decrypt(message, 0, message.size, result, 0)
+            return result
+        }
+
+        /** Plaintext size of an encrypted [message], the space [decrypt] needs in its output. */
+        fun contentSize(message: ByteArray) = message.size - ChaChaCipher.MAC_SIZE
+
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+package io.nekohasekai.nmd.utils
+
+import io.nekohasekai.nmd.Nmd
+import io.nekohasekai.tmicro.tmnet.BuffersStorage
+import io.nekohasekai.tmicro.tmnet.NativeByteBuffer
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Layer 5 frame plaintext, a codec byte followed by the object as that codec encodes it, compressed before
+ * encryption so there is something left to compress.
+ */
+object FrameCodec {
+
+    const val NONE = 0
+    const val DEFLATE = 1
+    const val DEFLATE_STREAM = 2
+
+    // objects smaller than this are sent as they are
+    var THRESHOLD = 1024
+    var LEVEL = Deflater.BEST_SPEED
+
+    // constructors, length prefixes and padding, which the request allocation limit does not charge
+    private const val FRAME_OVERHEAD = 64 * 1024
+
+    /**
+     * Largest object a frame may inflate to, what a request may allocate when it is read plus [FRAME_OVERHEAD],
+     * so a compressed frame cannot take more memory than the same request sent as it is.
+     */
+    val maxInflatedSize get() = Nmd.MAX_REQUEST_ALLOCATION + FRAME_OVERHEAD
+
+    // bytes all streams may take together, connections opened past it send stateless frames
+    var STREAM_MEMORY = 64L shl 20
+
+    // zlib state of a raw deflater at the default memLevel, java.util.zip cannot make it smaller
+    private const val STREAM_COST = 256 * 1024 + 8 * 1024
+    private val SYNC_MARKER = byteArrayOf(0, 0, -1, -1)
+    private val streamMemory = AtomicLong()
+
+    private val deflater = ThreadLocal.withInitial { Deflater(LEVEL, true) }
+    private val inflater = ThreadLocal.withInitial { Inflater(true) }
+
+    /**
+     * Compresses [frame], written as [NONE] followed by the object, if the object reaches [threshold] and shrinks.
+     *
+     * @return [frame], or a leased [DEFLATE] frame, [frame] is reused then
+     */
+    fun encode(frame: NativeByteBuffer, threshold: Int = THRESHOLD): NativeByteBuffer {
+        val length = frame.length() - 1
+        if (length < threshold) return frame
+        val output = BuffersStorage.getInstance().getFreeBuffer(length + 1)
+        val deflater = deflater.get()
+        val size = try {
+            deflater.setInput(frame.buffer.array(), frame.buffer.arrayOffset() + 1, length)
+            deflater.finish()
+            val size = deflater.deflate(output.buffer.array(), output.buffer.arrayOffset() + 1, length)
+            if (deflater.finished() && size < length) size else -1
+        } finally {
+            deflater.reset()
+        }
+        if (size < 0) {
+            output.reuse()
+            return frame
+        }
+        output.writeByte(DEFLATE)
+        output.position(size + 1)
+        frame.reuse()
+        return output
+    }
+
+    /**
+     * Reads the codec byte of a decrypted [frame].
+     *
+     * @return [frame] positioned at the object, or a leased buffer of the inflated object, [frame] is reused then
+     * @throws DataFormatException if the codec is unknown or the object is corrupt or inflates past [maxInflatedSize]
+     */
+    fun decode(frame: NativeByteBuffer): NativeByteBuffer {
+        if (frame.remaining() < 1) {
+            throw DataFormatException("Empty frame")
+        }
+        return when (val codec = frame.readByte(false).toInt()) {
+            NONE -> frame
+            DEFLATE -> inflate(frame).also { frame.reuse() }
+            // only the server streams
+            else -> throw DataFormatException("Unknown codec $codec")
+        }
+    }
+
+    /**
+     * Opens a deflate stream for the frames sent to a layer 6 connection, or returns null when [STREAM_MEMORY] is
+     * taken and the connection has to do with stateless frames.
+     */
+    fun openStream(): Stream? {
+        if (streamMemory.addAndGet(STREAM_COST.toLong()) > STREAM_MEMORY) {
+            streamMemory.addAndGet(-STREAM_COST.toLong())
+            return null
+        }
+        return Stream()
+    }
+
+    val streamsOpen get() = streamMemory.get() / STREAM_COST
+
+    /**
+     * One deflate stream whose window carries over from frame to frame, each frame ends on a sync flush
+     * with the trailing 00 00 ff ff dropped, which the reader appends again before inflating.
+     *
+     * Frames have to be encoded in the order they are sent.
+     */
+    class Stream internal constructor() : Closeable {
+
+        private val deflater = Deflater(LEVEL, true)
+        private var closed = false
+
+        /**
+         * Compresses [frame], written as [NONE] followed by the object, into a leased [DEFLATE_STREAM] frame.
+         * [frame] is reused.
+         */
+        fun encode(frame: NativeByteBuffer): NativeByteBuffer {
+            val storage = BuffersStorage.getInstance()
+            val length = frame.length() - 1
+            var output = storage.getFreeBuffer(length + length / 1024 + 64)
+            try {
+                deflater.setInput(frame.buffer.array(), frame.buffer.arrayOffset() + 1, length)
+                output.writeByte(DEFLATE_STREAM)
+                var size = 1
+                while (true) {
+                    val capacity = output.buffer.capacity()
+                    size += deflater.deflate(output.buffer.array(), output.buffer.arrayOffset() + size, capacity - size, Deflater.SYNC_FLUSH)
+                    if (size < capacity) break
+                    val grown = storage.getFreeBuffer(capacity * 2)
+                    System.arraycopy(output.buffer.array(), output.buffer.arrayOffset(), grown.buffer.array(), grown.buffer.arrayOffset(), size)
+                    output.reuse()
+                    output = grown
+                }
+                output.position(size - SYNC_MARKER.size)
+            } catch (e: Throwable) {
+                output.reuse()
+                throw e
+            }
+            frame.reuse()
+            return output
+        }
+
+        override fun close() {
+            if (closed) return
+            closed = true
+            deflater.end()
+            streamMemory.addAndGet(-STREAM_COST.toLong())
+        }
+
+    }
+
+    private fun inflate(frame: NativeByteBuffer): NativeByteBuffer {
+        val storage = BuffersStorage.getInstance()
+        val inflater = inflater.get()
+        val maxSize = maxInflatedSize
+        var output = storage.getFreeBuffer((frame.remaining() * 4L).coerceIn(4096L, maxSize.toLong()).toInt())
+        var size = 0
+        try {
+            inflater.setInput(frame.buffer.array(), frame.buffer.arrayOffset() + frame.getPosition(), frame.remaining())
+            while (!inflater.finished()) {
+                val capacity = output.buffer.capacity().coerceAtMost(maxSize)
+                if (size == capacity) {
+                    if (capacity == maxSize) {
+                        throw DataFormatException("Frame inflates past $maxSize bytes")
+                    }
+                    val grown = storage.getFreeBuffer((capacity * 2L).coerceAtMost(maxSize.toLong()).toInt())
+                    System.arraycopy(output.buffer.array(), output.buffer.arrayOffset(), grown.buffer.array(), grown.buffer.arrayOffset(), size)
+                    output.reuse()
+                    output = grown
+                    continue
+                }
+                val count = inflater.inflate(output.buffer.array(), output.buffer.arrayOffset() + size, capacity - size)
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw DataFormatException("Truncated frame")
+                }
+                size += count
+            }
+        } catch (e: Throwable) {
+            output.reuse()
+            throw e
+        } finally {
+            inflater.reset()
+        }
+        output.position(size)
+        output.flip()
+        return output
+    }
+
+}
@@ -0,0 +1,39 @@
+package io.nekohasekai.nmd.utils
+
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Lock free latency histogram with fixed buckets, rendered in the Prometheus text format.
+ */
+class LatencyHistogram(private val bucketsMillis: LongArray = DEFAULT_BUCKETS) {
+
+    private val counts = AtomicLongArray(bucketsMillis.size + 1)
+    private val sumNanos = LongAdder()
+
+    fun record(nanos: Long) {
+        var bucket = 0
+        while (bucket < bucketsMillis.size && nanos > bucketsMillis[bucket] * 1_000_000) bucket++
+        counts.incrementAndGet(bucket)
+        sumNanos.add(nanos)
+    }
+
+    fun writeTo(builder: StringBuilder, name: String, help: String) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n')
+        builder.append("# TYPE ").append(name).append(" histogram\n")
+        var cumulative = 0L
+        for (i in bucketsMillis.indices) {
+            cumulative += counts.get(i)
+            builder.append(name).append("_bucket{le=\"").append(bucketsMillis[i] / 1000.0).append("\"} ").append(cumulative).append('\n')
+        }
+        cumulative += counts.get(bucketsMillis.size)
+        builder.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n')
+        builder.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n')
+        builder.append(name).append("_count ").append(cumulative).append('\n')
+    }
+
+    companion object {
+        val DEFAULT_BUCKETS = longArrayOf(1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000)
+    }
+
+}
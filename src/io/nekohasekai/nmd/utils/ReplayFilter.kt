@@ -0,0 +1,121 @@
+package io.nekohasekai.nmd.utils
+
+import org.bouncycastle.crypto.macs.SipHash
+import org.bouncycastle.crypto.params.KeyParameter
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Fixed memory filter of recently seen tokens, a ring of [BUCKETS] Bloom filters each covering [bucketSeconds].
+ *
+ * A token is remembered between 2 and 3 buckets, long enough to outlive its validity window, then forgotten
+ * when its bucket is replaced. Lookups and inserts never lock, so concurrent duplicates may both pass,
+ * and false positives reject a fresh token at the configured rate.
+ *
+ * @param bits size of each bucket, rounded up to a multiple of 64
+ */
+class ReplayFilter(bits: Int = 1 shl 20, private val bucketSeconds: Int = 30, private val hashes: Int = 7) {
+
+    private val words = (bits + 63) ushr 6
+    private val size = words.toLong() shl 6
+
+    private class Bucket(val epoch: Long, val bits: AtomicLongArray)
+
+    private val buckets = AtomicReferenceArray<Bucket>(BUCKETS)
+
+    // keyed so the positions of a token cannot be predicted
+    private val key = ByteArray(16).also { EncUtil.secureRandom.nextBytes(it) }
+    private val sipHash = ThreadLocal.withInitial { SipHash().apply { init(KeyParameter(key)) } }
+
+    /**
+     * Tells whether [token] was, or looks like it was, seen recently, without remembering it.
+     */
+    fun mightContain(token: ByteArray, now: Long = System.currentTimeMillis() / 1000): Boolean {
+        val hash = hash(token)
+        val h1 = hash.toInt()
+        val h2 = (hash ushr 32).toInt() or 1
+        return seen(now / bucketSeconds, 0, h1, h2)
+    }
+
+    /**
+     * Remembers [token] and tells whether it was new.
+     *
+     * @return false if [token] was, or looks like it was, seen recently
+     */
+    fun add(token: ByteArray, now: Long = System.currentTimeMillis() / 1000): Boolean {
+        val hash = hash(token)
+        val h1 = hash.toInt()
+        val h2 = (hash ushr 32).toInt() or 1
+
+        val epoch = now / bucketSeconds
+        if (seen(epoch, 1, h1, h2)) return false
+        return set(current(epoch).bits, h1, h2)
+    }
+
+    private fun hash(token: ByteArray): Long {
+        val mac = sipHash.get()
+        mac.update(token, 0, token.size)
+        return mac.doFinal()
+    }
+
+    // looks in the buckets of the epochs from [epoch] - [fromAge] back
+    private fun seen(epoch: Long, fromAge: Int, h1: Int, h2: Int): Boolean {
+        for (age in fromAge until BUCKETS) {
+            val bucket = buckets.get(Math.floorMod(epoch - age, BUCKETS.toLong()).toInt())
+            if (bucket != null && bucket.epoch == epoch - age && contains(bucket.bits, h1, h2)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun current(epoch: Long): Bucket {
+        val index = Math.floorMod(epoch, BUCKETS.toLong()).toInt()
+        while (true) {
+            val bucket = buckets.get(index)
+            if (bucket != null && bucket.epoch >= epoch) {
+                return bucket
+            }
+            val fresh = Bucket(epoch, AtomicLongArray(words))
+            if (buckets.compareAndSet(index, bucket, fresh)) {
+                return fresh
+            }
+        }
+    }
+
+    private fun position(h1: Int, h2: Int, i: Int) = Math.floorMod((h1 + i * h2).toLong(), size)
+
+    private fun contains(bits: AtomicLongArray, h1: Int, h2: Int): Boolean {
+        for (i in 0 until hashes) {
+            val position = position(h1, h2, i)
+            if ((bits.get((position ushr 6).toInt()) and (1L shl position.toInt())) == 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    // true if any bit was newly set
+    private fun set(bits: AtomicLongArray, h1: Int, h2: Int): Boolean {
+        var added = false
+        for (i in 0 until hashes) {
+            val position = position(h1, h2, i)
+            val word = (position ushr 6).toInt()
+            val mask = 1L shl position.toInt()
+            while (true) {
+                val value = bits.get(word)
+                if ((value and mask) != 0L) break
+                if (bits.compareAndSet(word, value, value or mask)) {
+                    added = true
+                    break
+                }
+            }
+        }
+        return added
+    }
+
+    companion object {
+        const val BUCKETS = 3
+    }
+
+}
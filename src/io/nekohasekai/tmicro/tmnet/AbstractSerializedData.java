@@ -1,7 +1,89 @@
 package io.nekohasekai.tmicro.tmnet;
 
+import java.nio.ByteBuffer;
+
 public abstract class AbstractSerializedData {
 
+    /**
+     * Decode errors recorded instead of thrown when reading with {@code exception = false}.
+     */
+    public static final int ERROR_NONE = 0;
+    public static final int ERROR_TRUNCATED = 1;
+    public static final int ERROR_ALLOCATION_LIMIT = 2;
+    public static final int ERROR_BAD_VALUE = 3;
+    public static final int ERROR_UNKNOWN_CONSTRUCTOR = 4;
+    public static final int ERROR_TOO_DEEP = 5;
+
+    protected int error = ERROR_NONE;
+    protected int allocationBudget = Integer.MAX_VALUE;
+    int depth;
+
+    /**
+     * @return the first error met while reading, reads after it only return default values
+     */
+    public int getError() {
+        return error;
+    }
+
+    public void setError(int error) {
+        if (this.error == ERROR_NONE) {
+            this.error = error;
+        }
+    }
+
+    /**
+     * Limits the bytes that reads of arrays, strings and vectors may allocate from now on.
+     */
+    public void setAllocationLimit(int limit) {
+        allocationBudget = limit;
+    }
+
+    protected void resetErrors() {
+        error = ERROR_NONE;
+        allocationBudget = Integer.MAX_VALUE;
+        depth = 0;
+    }
+
+    /**
+     * Fails the current read, throwing if {@code exception} is set and recording {@code error} otherwise.
+     */
+    protected boolean fail(int error, boolean exception, String message) {
+        if (exception) {
+            throw new RuntimeException(message);
+        }
+        setError(error);
+        return false;
+    }
+
+    /**
+     * Charges {@code count} bytes to the allocation budget before they are allocated.
+     */
+    protected boolean chargeAllocation(int count, boolean exception) {
+        if (count > allocationBudget) {
+            return fail(ERROR_ALLOCATION_LIMIT, exception, "allocation limit exceeded");
+        }
+        allocationBudget -= count;
+        return true;
+    }
+
+    /**
+     * Checks a vector element count read from the stream before the vector is allocated, and charges what its
+     * elements take.
+     *
+     * @param minElementSize fewest bytes an element is encoded in, so the count cannot exceed what is left
+     * @param elementSize    bytes each element allocates besides its own arrays and strings, which are charged
+     *                       when they are read
+     */
+    public boolean checkVectorSize(int count, int minElementSize, int elementSize, boolean exception) {
+        if (error != ERROR_NONE) {
+            return false;
+        }
+        if (count < 0 || (long) count * minElementSize > remaining()) {
+            return fail(ERROR_BAD_VALUE, exception, "wrong vector size " + count);
+        }
+        return chargeAllocation((int) Math.min((long) count * elementSize, Integer.MAX_VALUE), exception);
+    }
+
     public abstract void writeInt32(int x);
 
     public abstract void writeInt64(long x);
@@ -22,6 +104,11 @@ public abstract class AbstractSerializedData {
 
     public abstract void writeByteArray(byte[] b);
 
+    /**
+     * Writes the remaining bytes of {@code b} as a byte array, the position of {@code b} is left unchanged.
+     */
+    public abstract void writeByteArray(ByteBuffer b);
+
     public abstract void writeDouble(double d);
 
     public abstract byte readByte(boolean exception);
@@ -38,8 +125,25 @@ public abstract class AbstractSerializedData {
 
     public abstract String readString(boolean exception);
 
+    /**
+     * Reads a string through {@link StringCache}, for fields with few distinct values.
+     */
+    public abstract String readInternedString(boolean exception);
+
     public abstract byte[] readByteArray(boolean exception);
 
+    /**
+     * Reads a byte array as a view over the underlying data where the implementation allows it.
+     * <p>
+     * The view is only valid as long as the data this stream reads from, callers keeping it longer must copy it.
+     */
+    public abstract ByteBuffer readByteBuffer(boolean exception);
+
+    /**
+     * Reads {@code count} raw bytes as a view, with the same lifetime as {@link #readByteBuffer(boolean)}.
+     */
+    public abstract ByteBuffer readDataView(int count, boolean exception);
+
     public abstract double readDouble(boolean exception);
 
     public abstract int length();
@@ -49,4 +153,41 @@ public abstract class AbstractSerializedData {
     public abstract int getPosition();
 
     public abstract int remaining();
+
+    /**
+     * Encoded size of a byte array of {@code count} bytes, including its length prefix and padding.
+     */
+    public static int getByteArraySize(int count) {
+        int sl = count <= 253 ? 1 : 4;
+        return (sl + count + 3) & ~3;
+    }
+
+    /**
+     * Encoded size of {@code s} as written by {@link #writeString(String)}, computed without encoding it.
+     */
+    public static int getStringSize(String s) {
+        return getByteArraySize(getUtf8Length(s));
+    }
+
+    public static int getUtf8Length(String s) {
+        int length = s.length();
+        int result = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                result += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // the pair takes 4 bytes for 2 chars
+                result += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                result += 2;
+            }
+            // unpaired surrogates are encoded as '?'
+        }
+        return result;
+    }
 }
@@ -0,0 +1,153 @@
+package io.nekohasekai.tmicro.tmnet;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of heap {@link NativeByteBuffer}s used by the send and receive paths.
+ * <p>
+ * Buffers are kept in size classes, spread over stripes picked by the calling thread
+ * so concurrent connections rarely meet on the same lock. The total capacity retained
+ * by the pool is bounded, buffers returned past that bound are left to the GC.
+ */
+public class BuffersStorage {
+
+    private static final int[] SIZES = {128, 1024, 4096, 16384, 65536, 262144, 1048576};
+    private static final int STRIPES = stripes();
+
+    private static volatile BuffersStorage Instance;
+
+    public static BuffersStorage getInstance() {
+        BuffersStorage localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (BuffersStorage.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new BuffersStorage(64L * 1024 * 1024);
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private static int stripes() {
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors());
+        return Math.max(1, Math.min(stripes, 64));
+    }
+
+    private final Stripe[] stripes;
+    private volatile long maxRetainedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    public BuffersStorage(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Leases a buffer in write mode with at least {@code size} bytes of capacity.
+     * <p>
+     * The buffer must be handed back with {@link NativeByteBuffer#reuse()} once nothing refers to its content.
+     */
+    public NativeByteBuffer getFreeBuffer(int size) {
+        int sizeClass = sizeClassFor(size);
+        if (sizeClass < 0) {
+            misses.increment();
+            return new NativeByteBuffer(size);
+        }
+        NativeByteBuffer buffer;
+        Stripe stripe = currentStripe();
+        synchronized (stripe) {
+            buffer = stripe.buffers[sizeClass].pollFirst();
+        }
+        if (buffer == null) {
+            misses.increment();
+            buffer = new NativeByteBuffer(SIZES[sizeClass]);
+        } else {
+            hits.increment();
+            retainedBytes.addAndGet(-buffer.buffer.capacity());
+        }
+        buffer.lease(this);
+        return buffer;
+    }
+
+    void reuseFreeBuffer(NativeByteBuffer buffer) {
+        int capacity = buffer.buffer.capacity();
+        int sizeClass = floorSizeClass(capacity);
+        if (sizeClass < 0) {
+            return;
+        }
+        long retained = retainedBytes.addAndGet(capacity);
+        if (retained > maxRetainedBytes) {
+            retainedBytes.addAndGet(-capacity);
+            return;
+        }
+        Stripe stripe = currentStripe();
+        synchronized (stripe) {
+            stripe.buffers[sizeClass].addFirst(buffer);
+        }
+    }
+
+    private static int sizeClassFor(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int floorSizeClass(int capacity) {
+        for (int i = SIZES.length - 1; i >= 0; i--) {
+            if (capacity >= SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Stripe currentStripe() {
+        return stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    public long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    public void setMaxRetainedBytes(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    private static class Stripe {
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayDeque<NativeByteBuffer>[] buffers = new ArrayDeque[SIZES.length];
+
+        Stripe() {
+            for (int i = 0; i < SIZES.length; i++) {
+                buffers[i] = new ArrayDeque<>();
+            }
+        }
+
+    }
+
+}
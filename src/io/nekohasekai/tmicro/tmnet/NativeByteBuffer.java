@@ -0,0 +1,509 @@
+package io.nekohasekai.tmicro.tmnet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link AbstractSerializedData} backed by a growable little-endian {@link ByteBuffer}.
+ * <p>
+ * Wire compatible with {@link SerializedData}, but primitives are read and written in bulk
+ * instead of byte by byte through synchronized streams.
+ */
+public class NativeByteBuffer extends AbstractSerializedData {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public ByteBuffer buffer;
+    protected boolean isOut = true;
+    private boolean direct;
+    private boolean justCalc;
+    private int len;
+    private BuffersStorage storage;
+    private boolean leased;
+
+    public NativeByteBuffer() {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    public NativeByteBuffer(boolean calculate) {
+        if (!calculate) {
+            buffer = allocate(DEFAULT_CAPACITY, false);
+        }
+        justCalc = calculate;
+        len = 0;
+    }
+
+    public NativeByteBuffer(int size) {
+        this(size, false);
+    }
+
+    public NativeByteBuffer(int size, boolean direct) {
+        this.direct = direct;
+        buffer = allocate(size, direct);
+    }
+
+    public NativeByteBuffer(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Reads from the remaining bytes of {@code data}, the buffer is switched to little-endian.
+     */
+    public NativeByteBuffer(ByteBuffer data) {
+        isOut = false;
+        direct = data.isDirect();
+        buffer = data.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer allocate(int size, boolean direct) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    void lease(BuffersStorage storage) {
+        this.storage = storage;
+        leased = true;
+        resetErrors();
+        isOut = true;
+        justCalc = false;
+        len = 0;
+        buffer.clear();
+    }
+
+    /**
+     * Returns a buffer obtained from {@link BuffersStorage} to its pool, the buffer must not be used afterwards.
+     */
+    public void reuse() {
+        if (!leased) {
+            return;
+        }
+        leased = false;
+        storage.reuseFreeBuffer(this);
+    }
+
+    private void ensureCapacity(int count) {
+        if (buffer.remaining() >= count) {
+            return;
+        }
+        int required = buffer.position() + count;
+        if (required < 0) {
+            throw new OutOfMemoryError("Serialized data too large");
+        }
+        int capacity = Math.max(buffer.capacity() << 1, required);
+        if (capacity < 0) {
+            capacity = required;
+        }
+        ByteBuffer newBuffer = allocate(capacity, direct);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+
+    public void writeInt32(int x) {
+        if (!justCalc) {
+            ensureCapacity(4);
+            buffer.putInt(x);
+        } else {
+            len += 4;
+        }
+    }
+
+    public void writeInt64(long x) {
+        if (!justCalc) {
+            ensureCapacity(8);
+            buffer.putLong(x);
+        } else {
+            len += 8;
+        }
+    }
+
+    public void writeBool(boolean value) {
+        writeInt32(value ? 0x997275b5 : 0xbc799737);
+    }
+
+    public void writeBytes(byte[] b) {
+        writeBytes(b, 0, b.length);
+    }
+
+    public void writeBytes(byte[] b, int offset, int count) {
+        if (!justCalc) {
+            ensureCapacity(count);
+            buffer.put(b, offset, count);
+        } else {
+            len += count;
+        }
+    }
+
+    public void writeByte(int i) {
+        writeByte((byte) i);
+    }
+
+    public void writeByte(byte b) {
+        if (!justCalc) {
+            ensureCapacity(1);
+            buffer.put(b);
+        } else {
+            len += 1;
+        }
+    }
+
+    /**
+     * Encodes {@code s} straight into the buffer, without an intermediate array.
+     */
+    public void writeString(String s) {
+        int count = getUtf8Length(s);
+        if (justCalc) {
+            len += getByteArraySize(count);
+            return;
+        }
+        int sl = count <= 253 ? 1 : 4;
+        int padding = (4 - ((count + sl) & 3)) & 3;
+        ensureCapacity(sl + count + padding);
+        if (sl == 1) {
+            buffer.put((byte) count);
+        } else {
+            buffer.putInt(254 | (count << 8));
+        }
+        int length = s.length();
+        if (count == length && buffer.hasArray()) {
+            // one byte per char: ASCII, or unpaired surrogates replaced by '?'
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + buffer.position();
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                array[offset + i] = c < 0x80 ? (byte) c : (byte) '?';
+            }
+            buffer.position(buffer.position() + length);
+        } else {
+            encodeUtf8(s);
+        }
+        for (int i = 0; i < padding; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private void encodeUtf8(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+                } else {
+                    // same replacement as String.getBytes
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    public void writeByteArray(byte[] b) {
+        writeByteArray(b, 0, b.length);
+    }
+
+    public void writeByteArray(byte[] b, int offset, int count) {
+        int sl = count <= 253 ? 1 : 4;
+        int padding = (4 - ((count + sl) & 3)) & 3;
+        if (justCalc) {
+            len += sl + count + padding;
+            return;
+        }
+        ensureCapacity(sl + count + padding);
+        if (sl == 1) {
+            buffer.put((byte) count);
+        } else {
+            buffer.putInt(254 | (count << 8));
+        }
+        buffer.put(b, offset, count);
+        for (int i = 0; i < padding; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    public void writeByteArray(ByteBuffer b) {
+        int count = b.remaining();
+        if (justCalc) {
+            len += getByteArraySize(count);
+            return;
+        }
+        int sl = count <= 253 ? 1 : 4;
+        int padding = (4 - ((count + sl) & 3)) & 3;
+        ensureCapacity(sl + count + padding);
+        if (sl == 1) {
+            buffer.put((byte) count);
+        } else {
+            buffer.putInt(254 | (count << 8));
+        }
+        int position = b.position();
+        buffer.put(b);
+        b.position(position);
+        for (int i = 0; i < padding; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    public void writeDouble(double d) {
+        writeInt64(Double.doubleToRawLongBits(d));
+    }
+
+    public void writeFloat(float f) {
+        writeInt32(Float.floatToRawIntBits(f));
+    }
+
+    public int length() {
+        if (!justCalc) {
+            return isOut ? buffer.position() : buffer.remaining();
+        }
+        return len;
+    }
+
+    public void skip(int count) {
+        if (count == 0) {
+            return;
+        }
+        if (!justCalc) {
+            buffer.position(Math.min(buffer.position() + count, buffer.limit()));
+        } else {
+            len += count;
+        }
+    }
+
+    public int getPosition() {
+        return justCalc ? len : buffer.position();
+    }
+
+    public void position(int position) {
+        buffer.position(position);
+    }
+
+    public int limit() {
+        return buffer.limit();
+    }
+
+    public void limit(int limit) {
+        buffer.limit(limit);
+    }
+
+    /**
+     * Switches a written buffer to reading its content from the start.
+     */
+    public void flip() {
+        isOut = false;
+        buffer.flip();
+    }
+
+    public void rewind() {
+        buffer.rewind();
+    }
+
+    public byte[] toByteArray() {
+        byte[] result;
+        if (isOut) {
+            result = new byte[buffer.position()];
+            buffer.duplicate().flip().get(result);
+        } else {
+            result = new byte[buffer.remaining()];
+            buffer.duplicate().get(result);
+        }
+        return result;
+    }
+
+    private boolean checkRemaining(int count, boolean exception, String message) {
+        if (error == ERROR_NONE && buffer.remaining() >= count) {
+            return true;
+        }
+        return fail(ERROR_TRUNCATED, exception, message);
+    }
+
+    public boolean readBool(boolean exception) {
+        int consructor = readInt32(exception);
+        if (consructor == 0x997275b5) {
+            return true;
+        } else if (consructor == 0xbc799737) {
+            return false;
+        }
+        if (error == ERROR_NONE) {
+            fail(ERROR_BAD_VALUE, exception, "Not bool value!");
+        }
+        return false;
+    }
+
+    public byte readByte(boolean exception) {
+        if (!checkRemaining(1, exception, "read byte error")) {
+            return 0;
+        }
+        return buffer.get();
+    }
+
+    public void readBytes(byte[] b, boolean exception) {
+        if (!checkRemaining(b.length, exception, "read bytes error")) {
+            return;
+        }
+        buffer.get(b);
+    }
+
+    public byte[] readData(int count, boolean exception) {
+        if (count < 0 || !checkRemaining(count, exception, "read bytes error") || !chargeAllocation(count, exception)) {
+            return null;
+        }
+        byte[] arr = new byte[count];
+        buffer.get(arr);
+        return arr;
+    }
+
+    /**
+     * Reads the length prefix of a byte array and checks the padded body is available,
+     * charging the body to the allocation budget if it is going to be copied.
+     *
+     * @return the body length, or -1 if the data is truncated
+     */
+    private int readByteArrayLength(boolean exception, boolean allocate, String error) {
+        if (!checkRemaining(1, exception, error)) {
+            return -1;
+        }
+        int sl = 1;
+        int l = buffer.get() & 0xff;
+        if (l >= 254) {
+            if (!checkRemaining(3, exception, error)) {
+                return -1;
+            }
+            l = (buffer.get() & 0xff) | ((buffer.get() & 0xff) << 8) | ((buffer.get() & 0xff) << 16);
+            if (l <= 253) {
+                fail(ERROR_BAD_VALUE, exception, error);
+                return -1;
+            }
+            sl = 4;
+        }
+        int padding = (4 - ((l + sl) & 3)) & 3;
+        if (!checkRemaining(l + padding, exception, error)) {
+            return -1;
+        }
+        if (allocate && !chargeAllocation(l, exception)) {
+            return -1;
+        }
+        return l;
+    }
+
+    private void skipPadding(int l) {
+        int sl = l <= 253 ? 1 : 4;
+        buffer.position(buffer.position() + ((4 - ((l + sl) & 3)) & 3));
+    }
+
+    public String readString(boolean exception) {
+        int l = readByteArrayLength(exception, true, "read string error");
+        if (l < 0) {
+            return null;
+        }
+        String result;
+        if (buffer.hasArray()) {
+            result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), l, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + l);
+        } else {
+            byte[] b = new byte[l];
+            buffer.get(b);
+            result = new String(b, StandardCharsets.UTF_8);
+        }
+        skipPadding(l);
+        return result;
+    }
+
+    public String readInternedString(boolean exception) {
+        int l = readByteArrayLength(exception, true, "read string error");
+        if (l < 0) {
+            return null;
+        }
+        String result;
+        if (buffer.hasArray()) {
+            result = StringCache.getInstance().get(buffer.array(), buffer.arrayOffset() + buffer.position(), l);
+            buffer.position(buffer.position() + l);
+        } else {
+            byte[] b = new byte[l];
+            buffer.get(b);
+            result = StringCache.getInstance().get(b, 0, l);
+        }
+        skipPadding(l);
+        return result;
+    }
+
+    public byte[] readByteArray(boolean exception) {
+        int l = readByteArrayLength(exception, true, "read byte array error");
+        if (l < 0) {
+            return null;
+        }
+        byte[] b = new byte[l];
+        buffer.get(b);
+        skipPadding(l);
+        return b;
+    }
+
+    /**
+     * Returns a slice of the backing buffer, no bytes are copied.
+     */
+    public ByteBuffer readByteBuffer(boolean exception) {
+        int l = readByteArrayLength(exception, false, "read byte array error");
+        if (l < 0) {
+            return null;
+        }
+        ByteBuffer view = slice(l);
+        skipPadding(l);
+        return view;
+    }
+
+    public ByteBuffer readDataView(int count, boolean exception) {
+        if (!checkRemaining(count, exception, "read bytes error")) {
+            return null;
+        }
+        return slice(count);
+    }
+
+    private ByteBuffer slice(int count) {
+        ByteBuffer view = buffer.slice();
+        view.limit(count);
+        buffer.position(buffer.position() + count);
+        return view;
+    }
+
+    public double readDouble(boolean exception) {
+        return Double.longBitsToDouble(readInt64(exception));
+    }
+
+    public float readFloat(boolean exception) {
+        return Float.intBitsToFloat(readInt32(exception));
+    }
+
+    public int readInt32(boolean exception) {
+        if (!checkRemaining(4, exception, "read int32 error")) {
+            return 0;
+        }
+        return buffer.getInt();
+    }
+
+    public long readInt64(boolean exception) {
+        if (!checkRemaining(8, exception, "read int64 error")) {
+            return 0;
+        }
+        return buffer.getLong();
+    }
+
+    public int remaining() {
+        if (justCalc || isOut) {
+            return Integer.MAX_VALUE;
+        }
+        return buffer.remaining();
+    }
+
+}
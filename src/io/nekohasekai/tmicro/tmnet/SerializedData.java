@@ -7,6 +7,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class SerializedData extends AbstractSerializedData {
 
@@ -235,9 +237,19 @@ public class SerializedData extends AbstractSerializedData {
         }
     }
 
+    public void writeByteArray(ByteBuffer b) {
+        if (b.hasArray()) {
+            writeByteArray(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        } else {
+            byte[] data = new byte[b.remaining()];
+            b.duplicate().get(data);
+            writeByteArray(data);
+        }
+    }
+
     public void writeString(String s) {
         try {
-            writeByteArray(s.getBytes("UTF-8"));
+            writeByteArray(s.getBytes(StandardCharsets.UTF_8));
         } catch (Exception e) {
             if (DEBUG) {
                 System.err.println("write string error");
@@ -400,6 +412,9 @@ public class SerializedData extends AbstractSerializedData {
     }
 
     public byte[] readData(int count, boolean exception) {
+        if (!chargeAllocation(count, exception)) {
+            return null;
+        }
         byte[] arr = new byte[count];
         readBytes(arr, exception);
         return arr;
@@ -415,6 +430,9 @@ public class SerializedData extends AbstractSerializedData {
                 len += 3;
                 sl = 4;
             }
+            if (l > in.available() && !fail(ERROR_TRUNCATED, exception, "truncated data") || !chargeAllocation(l, exception)) {
+                return null;
+            }
             byte[] b = new byte[l];
             in.read(b);
             len++;
@@ -424,7 +442,7 @@ public class SerializedData extends AbstractSerializedData {
                 len++;
                 i++;
             }
-            return new String(b, "UTF-8");
+            return new String(b, StandardCharsets.UTF_8);
         } catch (Exception e) {
             if (exception) {
                 e.printStackTrace();
@@ -439,6 +457,11 @@ public class SerializedData extends AbstractSerializedData {
         return null;
     }
 
+    public String readInternedString(boolean exception) {
+        byte[] b = readByteArray(exception);
+        return b != null ? StringCache.getInstance().get(b, 0, b.length) : null;
+    }
+
     public byte[] readByteArray(boolean exception) {
         try {
             int sl = 1;
@@ -449,6 +472,9 @@ public class SerializedData extends AbstractSerializedData {
                 len += 3;
                 sl = 4;
             }
+            if (l > in.available() && !fail(ERROR_TRUNCATED, exception, "truncated data") || !chargeAllocation(l, exception)) {
+                return null;
+            }
             byte[] b = new byte[l];
             in.read(b);
             len++;
@@ -473,6 +499,15 @@ public class SerializedData extends AbstractSerializedData {
         return null;
     }
 
+    public ByteBuffer readByteBuffer(boolean exception) {
+        byte[] b = readByteArray(exception);
+        return b != null ? ByteBuffer.wrap(b) : null;
+    }
+
+    public ByteBuffer readDataView(int count, boolean exception) {
+        return ByteBuffer.wrap(readData(count, exception));
+    }
+
     public double readDouble(boolean exception) {
         try {
             return Double.longBitsToDouble(readInt64(exception));
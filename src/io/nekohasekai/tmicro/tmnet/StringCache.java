@@ -0,0 +1,76 @@
+package io.nekohasekai.tmicro.tmnet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Bounded intern cache for low-cardinality strings such as platform names or error messages.
+ * <p>
+ * Direct-mapped by the hash of the encoded bytes, so a hit decodes nothing and allocates nothing.
+ * Colliding strings simply replace each other, entries are immutable and published without locks.
+ */
+public class StringCache {
+
+    private static volatile StringCache Instance;
+
+    public static StringCache getInstance() {
+        StringCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (StringCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new StringCache(1024, 64);
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private final Entry[] entries;
+    private final int mask;
+    private final int maxLength;
+
+    /**
+     * @param size      number of slots, rounded up to a power of two
+     * @param maxLength longest encoded string that gets cached
+     */
+    public StringCache(int size, int maxLength) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1) << 1);
+        entries = new Entry[capacity];
+        mask = capacity - 1;
+        this.maxLength = maxLength;
+    }
+
+    public String get(byte[] data, int offset, int length) {
+        if (length > maxLength) {
+            return new String(data, offset, length, StandardCharsets.UTF_8);
+        }
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        int index = (hash ^ (hash >>> 16)) & mask;
+        Entry entry = entries[index];
+        if (entry != null && entry.hash == hash && Arrays.equals(entry.data, 0, entry.data.length, data, offset, offset + length)) {
+            return entry.value;
+        }
+        String value = new String(data, offset, length, StandardCharsets.UTF_8);
+        entries[index] = new Entry(hash, Arrays.copyOfRange(data, offset, offset + length), value);
+        return value;
+    }
+
+    private static class Entry {
+
+        final int hash;
+        final byte[] data;
+        final String value;
+
+        Entry(int hash, byte[] data, String value) {
+            this.hash = hash;
+            this.data = data;
+            this.value = value;
+        }
+
+    }
+
+}
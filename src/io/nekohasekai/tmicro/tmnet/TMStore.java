@@ -1,5 +1,7 @@
 package io.nekohasekai.tmicro.tmnet;
 
+import java.util.function.Supplier;
+
 public class TMStore {
 
     public static void serializeToStream(AbstractSerializedData stream, TMApi.Object object) {
@@ -14,6 +16,36 @@ public class TMStore {
         }
     }
 
+    /**
+     * Encoded size of {@code object} as written by {@link #serializeToStream(AbstractSerializedData, TMApi.Object)}.
+     */
+    public static int getObjectSize(TMApi.Object object) {
+        if (object == null) {
+            return 4;
+        }
+        return (object instanceof TMApi.Function ? 8 : 4) + object.getObjectSize();
+    }
+
+    /**
+     * Serializes {@code object} into a buffer leased from {@link BuffersStorage}, sized exactly so it never grows.
+     * <p>
+     * The caller returns the buffer with {@link NativeByteBuffer#reuse()}.
+     */
+    public static NativeByteBuffer serializeToStream(TMApi.Object object) {
+        NativeByteBuffer buffer = BuffersStorage.getInstance().getFreeBuffer(getObjectSize(object));
+        serializeToStream(buffer, object);
+        return buffer;
+    }
+
+    /**
+     * Serializes {@code object} into a new array of its exact encoded size.
+     */
+    public static byte[] serializeToByteArray(TMApi.Object object) {
+        NativeByteBuffer buffer = new NativeByteBuffer(getObjectSize(object));
+        serializeToStream(buffer, object);
+        return buffer.buffer.array();
+    }
+
     public static TMApi.Object deserializeFromSteam(AbstractSerializedData stream, boolean exception, TMApi.Object instance) {
         instance.readParams(stream, exception);
         return instance;
@@ -21,75 +53,263 @@ public class TMStore {
 
     public static TMApi.Object deserializeFromSteam(AbstractSerializedData stream, boolean exception) {
         int constructor = stream.readInt32(exception);
+        if (stream.error != AbstractSerializedData.ERROR_NONE) return null;
         return deserializeFromSteam(stream, exception, constructor);
     }
 
+    /**
+     * Reads a boxed object that must be an instance of {@code type}.
+     * <p>
+     * Without {@code exception}, any other object is reported as {@link AbstractSerializedData#ERROR_BAD_VALUE}
+     * and null is returned.
+     */
+    public static <T extends TMApi.Object> T deserializeFromSteam(AbstractSerializedData stream, boolean exception, Class<T> type) {
+        TMApi.Object object = deserializeFromSteam(stream, exception);
+        if (object == null || type.isInstance(object)) {
+            return type.cast(object);
+        }
+        stream.fail(AbstractSerializedData.ERROR_BAD_VALUE, exception, "Expected " + type.getSimpleName() + " but got " + object.getClass().getSimpleName());
+        return null;
+    }
+
     public static TMApi.Object deserializeFromSteam(AbstractSerializedData stream, boolean exception, int constructor) {
         if (constructor == 0x0) return null;
-        TMApi.Object response;
-        switch (constructor) {
-            case 0x1:
-                response = new TMApi.Ok();
-                break;
-            case 0x2:
-                response = new TMApi.Error();
-                break;
-            case 0x3:
-                response = new TMApi.Response();
-                break;
-            case 0x4:
-                response = new TMApi.InitConnection();
-                break;
-            case 0x5:
-                response = new TMApi.ConnInitTemp();
-                break;
-            case 0x6:
-                response = new TMApi.VerifyConnection();
-                break;
-            case 0x7:
-                response = new TMApi.AuthenticationCodeTypeTelegramMessage();
-                break;
-            case 0x8:
-                response = new TMApi.AuthenticationCodeTypeSms();
-                break;
-            case 0x9:
-                response = new TMApi.AuthenticationCodeTypeCall();
-                break;
-            case 0xa:
-                response = new TMApi.AuthenticationCodeInfo();
-                break;
-            case 0xb:
-                response = new TMApi.EmailAddressAuthenticationCodeInfo();
-                break;
-            case 0xc:
-                response = new TMApi.AuthorizationStateWaitPhoneNumber();
-                break;
-            case 0xd:
-                response = new TMApi.AuthorizationStateWaitCode();
-                break;
-            case 0xe:
-                response = new TMApi.AuthorizationStateWaitRegistration();
-                break;
-            case 0xf:
-                response = new TMApi.AuthorizationStateWaitPassword();
-                break;
-            case 0x10:
-                response = new TMApi.AuthorizationStateReady();
-                break;
-            case 0x11:
-                response = new TMApi.AuthorizationStateLoggingOut();
-                break;
-            case 0x12:
-                response = new TMApi.UpdateAuthorizationState();
-                break;
-            default:
+        Entry entry = getEntry(stream, exception, constructor);
+        if (entry == null) {
+            return null;
+        }
+        int requestId = entry.function ? stream.readInt32(exception) : 0;
+        return readObject(stream, exception, entry, requestId);
+    }
+
+    /**
+     * Reads only the constructor and, for functions, the requestId of a boxed object.
+     * <p>
+     * The body is parsed from the stream on the first {@link LazyObject#get()}, so nothing else may be read
+     * from the stream, nor may it be reused, until then. Returns null for a null object or once an error is set.
+     */
+    public static LazyObject deserializeLazy(AbstractSerializedData stream, boolean exception) {
+        int constructor = stream.readInt32(exception);
+        if (stream.error != AbstractSerializedData.ERROR_NONE || constructor == 0x0) return null;
+        Entry entry = getEntry(stream, exception, constructor);
+        if (entry == null) {
+            return null;
+        }
+        int requestId = entry.function ? stream.readInt32(exception) : 0;
+        if (stream.error != AbstractSerializedData.ERROR_NONE) return null;
+        return new LazyObject(stream, exception, constructor, requestId, entry);
+    }
+
+    private static Entry getEntry(AbstractSerializedData stream, boolean exception, int constructor) {
+        Entry entry = getEntry(constructor);
+        if (entry == null) {
+            if (exception) {
                 throw new IllegalStateException("Unknown constructor" + constructor);
+            }
+            stream.setError(AbstractSerializedData.ERROR_UNKNOWN_CONSTRUCTOR);
+        }
+        return entry;
+    }
+
+    private static TMApi.Object readObject(AbstractSerializedData stream, boolean exception, Entry entry, int requestId) {
+        if (stream.depth >= MAX_DEPTH) {
+            stream.fail(AbstractSerializedData.ERROR_TOO_DEEP, exception, "Object nested too deep");
+            return null;
         }
-        if (response instanceof TMApi.Function) {
-            ((TMApi.Function) response).requestId = stream.readInt32(exception);
+        stream.depth++;
+        TMApi.Object response = entry.factory.get();
+        if (entry.function) {
+            ((TMApi.Function) response).requestId = requestId;
         }
         response.readParams(stream, exception);
+        stream.depth--;
         return response;
     }
 
-}
\ No newline at end of file
+    /**
+     * A boxed object whose header has been read and whose body is parsed on demand.
+     */
+    public static class LazyObject {
+
+        public final int constructor;
+        public final int requestId;
+
+        private final Entry entry;
+        private AbstractSerializedData stream;
+        private final boolean exception;
+        private TMApi.Object object;
+
+        private LazyObject(AbstractSerializedData stream, boolean exception, int constructor, int requestId, Entry entry) {
+            this.stream = stream;
+            this.exception = exception;
+            this.constructor = constructor;
+            this.requestId = requestId;
+            this.entry = entry;
+        }
+
+        public boolean isFunction() {
+            return entry.function;
+        }
+
+        public int getLayer() {
+            return entry.layer;
+        }
+
+        /**
+         * Parses the body on the first call, returns null if it is malformed and errors are not thrown.
+         */
+        public TMApi.Object get() {
+            if (stream != null) {
+                object = readObject(stream, exception, entry, requestId);
+                if (stream.error != AbstractSerializedData.ERROR_NONE) {
+                    object = null;
+                }
+                stream = null;
+            }
+            return object;
+        }
+
+    }
+
+    /**
+     * Deepest nesting of boxed objects accepted while reading.
+     */
+    public static final int MAX_DEPTH = 32;
+
+    private static final int DENSE_SIZE = 1024;
+
+    private static volatile Entry[] dense = new Entry[DENSE_SIZE];
+    private static volatile ConstructorMap sparse = new ConstructorMap(16);
+
+    static {
+        TMApiConstructors.registerAll();
+    }
+
+    /**
+     * Registers the type created for {@code constructor}, introduced in {@code layer}.
+     * <p>
+     * Meant to be called at startup, lookups never lock but each registration copies its table.
+     */
+    public static synchronized void registerConstructor(int layer, int constructor, Supplier<? extends TMApi.Object> factory) {
+        if (constructor == 0x0) {
+            throw new IllegalArgumentException("Constructor 0x0 is reserved for null");
+        }
+        if (getEntry(constructor) != null) {
+            throw new IllegalStateException("Constructor 0x" + Integer.toHexString(constructor) + " already registered");
+        }
+        Entry entry = new Entry(layer, factory, factory.get() instanceof TMApi.Function);
+        if ((constructor & ~(DENSE_SIZE - 1)) == 0) {
+            Entry[] newDense = dense.clone();
+            newDense[constructor] = entry;
+            dense = newDense;
+        } else {
+            sparse = sparse.with(constructor, entry);
+        }
+    }
+
+    private static Entry getEntry(int constructor) {
+        if ((constructor & ~(DENSE_SIZE - 1)) == 0) {
+            return dense[constructor];
+        }
+        return sparse.get(constructor);
+    }
+
+    public static boolean isRegistered(int constructor) {
+        return getEntry(constructor) != null;
+    }
+
+    /**
+     * @return the layer {@code constructor} was introduced in, or -1 if it is unknown
+     */
+    public static int getLayer(int constructor) {
+        Entry entry = getEntry(constructor);
+        return entry != null ? entry.layer : -1;
+    }
+
+    /**
+     * Whether {@code constructor} is a {@link TMApi.Function}, followed by a requestId on the wire.
+     */
+    public static boolean isFunction(int constructor) {
+        Entry entry = getEntry(constructor);
+        return entry != null && entry.function;
+    }
+
+    private static class Entry {
+
+        final int layer;
+        final Supplier<? extends TMApi.Object> factory;
+        final boolean function;
+
+        Entry(int layer, Supplier<? extends TMApi.Object> factory, boolean function) {
+            this.layer = layer;
+            this.factory = factory;
+            this.function = function;
+        }
+
+    }
+
+    /**
+     * Immutable open addressing map from constructor ids outside the dense range to entries.
+     */
+    private static class ConstructorMap {
+
+        final int[] keys;
+        final Entry[] values;
+        final int size;
+
+        ConstructorMap(int capacity) {
+            keys = new int[capacity];
+            values = new Entry[capacity];
+            size = 0;
+        }
+
+        private ConstructorMap(int[] keys, Entry[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        private static int index(int key, int mask) {
+            int h = key * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        Entry get(int key) {
+            int mask = keys.length - 1;
+            for (int i = index(key, mask); ; i = (i + 1) & mask) {
+                Entry value = values[i];
+                if (value == null || keys[i] == key) {
+                    return value;
+                }
+            }
+        }
+
+        ConstructorMap with(int key, Entry entry) {
+            int capacity = keys.length;
+            while ((size + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+            int[] newKeys = new int[capacity];
+            Entry[] newValues = new Entry[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    put(newKeys, newValues, mask, keys[i], values[i]);
+                }
+            }
+            put(newKeys, newValues, mask, key, entry);
+            return new ConstructorMap(newKeys, newValues, size + 1);
+        }
+
+        private static void put(int[] keys, Entry[] values, int mask, int key, Entry value) {
+            int i = index(key, mask);
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+    }
+
+}